@@ -9,4 +9,28 @@ class Memcached::Rails
   def logger=(logger)
     @logger = logger
   end
+
+  # Entry wraps a value written by fetch with :race_condition_ttl, it is
+  # served stale after expires_at while one process recomputes it.
+  class Entry
+    attr_reader :value, :expires_at
+
+    def initialize(value, expires_at)
+      @value = value
+      @expires_at = expires_at
+    end
+
+    def expired?
+      Time.now.to_f > @expires_at
+    end
+  end
+end
+
+class Memcached
+  # Trains a preset dictionary for the marshal_dictionary transcoder from
+  # sample values, it's to be written as <id>.dict in the dictionary_path.
+  def self.train_dictionary(values, size = 16 * 1024)
+    samples = values.map { |value| Marshal.dump(value).to_java_bytes }
+    String.from_java_bytes(Java::ComOpenfeintMemcachedTranscoder::DictionaryTrainer.train(samples, size))
+  end
 end
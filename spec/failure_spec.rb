@@ -0,0 +1,207 @@
+require 'spec_helper'
+require File.expand_path('../fake_server', __FILE__)
+
+# Behaviors against a server which stops replying, the hung server doesn't
+# lose the commands, it replies to them once it recovers.
+describe Memcached do
+  before(:each) { @server = FakeServer.new }
+  after(:each) do
+    @memcached.shutdown if @memcached
+    @server.close
+  end
+
+  context "auto_eject_hosts" do
+    before(:each) do
+      @other = FakeServer.new
+      @memcached = Memcached.new([@server.address, @other.address], :timeout => 100, :exception_retry_limit => 0, :auto_eject_hosts => true, :server_failure_limit => 2, :retry_timeout => 1)
+      # a key of the server which hangs
+      @key = (1..100).map { |i| "key#{i}" }.find { |key| @memcached.set key, "value"; @server.keys.include?(key) }
+      @server.hung = true
+    end
+
+    after(:each) { @other.close }
+
+    it "should eject a failing server and add it back once it replies" do
+      2.times { expect { @memcached.get @key }.to raise_error(Memcached::ATimeoutOccurred) }
+      # the key rehashed to the other server
+      expect { @memcached.get @key }.to raise_error(Memcached::NotFound)
+      sleep 1.1
+      # probes the server
+      expect { @memcached.get @key }.to raise_error(Memcached::NotFound)
+      sleep 0.1
+      expect { @memcached.get @key }.to raise_error(Memcached::NotFound)
+      @server.hung = false
+      sleep 0.1
+      @memcached.get(@key).should == "value"
+    end
+  end
+
+  context "replicas" do
+    before(:each) do
+      @replica = FakeServer.new
+      @memcached = Memcached.new([@server.address, @replica.address], :timeout => 100, :exception_retry_limit => 0, :replicas => 1, :hedge_delay => 10)
+    end
+
+    after(:each) { @replica.close }
+
+    it "should get a key from its replica if its primary hangs" do
+      @replica.hung = true
+      # a key of the server which hangs, its set only waits for the primary
+      @key = (1..100).map { |i| "key#{i}" }.find do |key|
+        begin
+          @memcached.set key, "value"
+          true
+        rescue Memcached::ATimeoutOccurred
+          false
+        end
+      end
+      @replica.hung = false
+      sleep 0.1
+      @server.hung = true
+      @memcached.get(@key).should == "value"
+    end
+
+    it "should not time out a miss of the primary if the replica hangs" do
+      @replica.hung = true
+      # a key whose primary is the server which replies, its replica hangs
+      @key = (1..100).map { |i| "key#{i}" }.find do |key|
+        begin
+          @memcached.set key, "value"
+          @memcached.delete key
+          true
+        rescue Memcached::ATimeoutOccurred
+          false
+        end
+      end
+      @server.hung = true
+      Thread.new { sleep 0.05; @server.hung = false }
+      expect { @memcached.get @key }.to raise_error(Memcached::NotFound)
+    end
+
+    it "should keep counters on their primary only" do
+      @memcached.set "counter", "5", 0, false
+      @memcached.incr("counter").should == 6
+      # the replicas are written without waiting for them
+      sleep 0.1
+      (@server.keys + @replica.keys).should == ["counter"]
+    end
+
+    it "should copy the values of set_multi once they are stored" do
+      @server.hung = @replica.hung = true
+      @memcached.set_multi("key" => "value").should == {"key" => false}
+      sleep 0.1
+      (@server.keys + @replica.keys).should == ["key"]
+      @server.hung = @replica.hung = false
+      @memcached.set_multi("key" => "value").should == {"key" => true}
+      sleep 0.1
+      (@server.keys + @replica.keys).should == ["key", "key"]
+    end
+
+    it "should leave the replicas of add_async and replace_async if not stored" do
+      expect { @memcached.replace_async("key", "value").value }.to raise_error(Memcached::NotStored)
+      @memcached.add_async("key", "value").value
+      expect { @memcached.add_async("key", "other value").value }.to raise_error(Memcached::NotStored)
+      sleep 0.1
+      (@server.keys + @replica.keys).should == ["key", "key"]
+      @server.hung = true
+      @memcached.get("key").should == "value"
+    end
+  end
+
+  context "local_cache" do
+    before(:each) do
+      @memcached = Memcached.new(@server.address, :timeout => 1000, :local_cache_size => 100, :local_cache_ttl => 60)
+    end
+
+    it "should not cache a value got while the key is written" do
+      @memcached.set "key", "old value"
+      @server.hung = true
+      getter = Thread.new { @memcached.get "key" }
+      sleep 0.1
+      setter = Thread.new { @memcached.set "key", "new value" }
+      sleep 0.1
+      @server.hung = false
+      getter.value.should == "old value"
+      setter.join
+      @memcached.get("key").should == "new value"
+    end
+  end
+
+  context "value_chunk_size" do
+    before(:each) do
+      @memcached = Memcached.new(@server.address, :timeout => 100, :exception_retry_limit => 0, :value_chunk_size => 1000)
+      @server.hung = true
+    end
+
+    it "should raise NotStored if the chunks of a value aren't stored" do
+      expect { @memcached.set "key", "value" * 1000 }.to raise_error(Memcached::NotStored)
+      expect { @memcached.set_multi "key" => "value" * 1000 }.to raise_error(Memcached::NotStored)
+      expect { @memcached.set_async "key", "value" * 1000 }.to raise_error(Memcached::NotStored)
+      expect { @memcached.add_async "key", "value" * 1000 }.to raise_error(Memcached::NotStored)
+    end
+  end
+
+  context "retries" do
+    before(:each) { @server.hung = true }
+
+    it "should retry a timed out get exception_retry_limit times" do
+      @memcached = Memcached.new(@server.address, :timeout => 50, :exception_retry_limit => 5)
+      expect { @memcached.get "key" }.to raise_error(Memcached::ATimeoutOccurred)
+      @server.count("get").should == 6
+    end
+
+    it "should not retry a timed out get past retry_deadline" do
+      @memcached = Memcached.new(@server.address, :timeout => 50, :exception_retry_limit => 5, :retry_deadline => 120, :retry_backoff => 0)
+      expect { @memcached.get "key" }.to raise_error(Memcached::ATimeoutOccurred)
+      @server.count("get").should <= 3
+    end
+
+    it "should not retry more than retry_budget times per second" do
+      @memcached = Memcached.new(@server.address, :timeout => 50, :exception_retry_limit => 5, :retry_budget => 2)
+      expect { @memcached.get "key" }.to raise_error(Memcached::ATimeoutOccurred)
+      @server.count("get").should == 3
+    end
+
+    it "should not retry an add" do
+      @memcached = Memcached.new(@server.address, :timeout => 50, :exception_retry_limit => 5)
+      expect { @memcached.add "key", "value" }.to raise_error(Memcached::ATimeoutOccurred)
+      @server.count("add").should == 1
+    end
+  end
+
+  context "circuit_breaker" do
+    before(:each) do
+      @memcached = Memcached.new(@server.address, :timeout => 100, :exception_retry_limit => 0, :circuit_breaker => true, :circuit_min_requests => 2, :circuit_open_time => 500)
+      @memcached.set "key1", "value1"
+      @memcached.set "key2", "value2"
+      @server.hung = true
+    end
+
+    it "should open the circuit on failed gets" do
+      2.times { expect { @memcached.get "key1" }.to raise_error(Memcached::ATimeoutOccurred) }
+      expect { @memcached.get "key1" }.to raise_error(Memcached::ATimeoutOccurred, /circuit open/)
+    end
+
+    it "should open the circuit on failed multi gets and skip its keys" do
+      2.times { expect { @memcached.get ["key1", "key2"] }.to raise_error(Memcached::ATimeoutOccurred) }
+      @memcached.get(["key1", "key2"]).should == {}
+    end
+
+    it "should half open the circuit for a multi get once circuit_open_time passed" do
+      2.times { expect { @memcached.get ["key1", "key2"] }.to raise_error(Memcached::ATimeoutOccurred) }
+      @server.hung = false
+      @memcached.get(["key1", "key2"]).should == {}
+      sleep 0.5
+      # the first key is the probe, the others are skipped until it succeeds
+      @memcached.get(["key1", "key2"]).should == {"key1" => "value1"}
+      @memcached.get(["key1", "key2"]).should == {"key1" => "value1", "key2" => "value2"}
+    end
+
+    it "should open the circuit again if the probe fails" do
+      2.times { expect { @memcached.get ["key1", "key2"] }.to raise_error(Memcached::ATimeoutOccurred) }
+      sleep 0.5
+      expect { @memcached.get ["key1", "key2"] }.to raise_error(Memcached::ATimeoutOccurred)
+      @memcached.get(["key1", "key2"]).should == {}
+    end
+  end
+end
@@ -0,0 +1,95 @@
+require 'socket'
+
+# A memcached server keeping its values in memory, which can hang: it then
+# still accepts connections and commands but holds back the replies until
+# it recovers, like a stuck server.
+class FakeServer
+  attr_reader :hung
+
+  def initialize
+    @server = TCPServer.new("127.0.0.1", 0)
+    @values = {}
+    @counts = Hash.new(0)
+    @hung = false
+    # replies held back by connection
+    @held = {}
+    @mutex = Mutex.new
+    @thread = Thread.new do
+      loop { serve @server.accept }
+    end
+  end
+
+  def address
+    "127.0.0.1:#{@server.addr[1]}"
+  end
+
+  def hung=(hung)
+    @mutex.synchronize do
+      @hung = hung
+      @held.each_key { |socket| flush socket } unless hung
+    end
+  end
+
+  def keys
+    @values.keys
+  end
+
+  # number of commands received by name
+  def count(command)
+    @counts[command]
+  end
+
+  def close
+    @thread.kill
+    @server.close
+  end
+
+  private
+
+  def serve(socket)
+    @mutex.synchronize { @held[socket] = [] }
+    Thread.new do
+      while line = socket.gets
+        command, key, flags, expiry, bytes = line.split
+        @counts[command] += 1
+        replies = case command
+        when "set", "add", "replace"
+          data = socket.read(bytes.to_i + 2)[0, bytes.to_i]
+          if (command == "add" && @values.has_key?(key)) || (command == "replace" && !@values.has_key?(key))
+            ["NOT_STORED"]
+          else
+            @values[key] = [flags, data]
+            ["STORED"]
+          end
+        when "get", "gets"
+          line.split[1..-1].select { |k| @values.has_key?(k) }.map { |k|
+            "VALUE #{k} #{@values[k][0]} #{@values[k][1].size}\r\n#{@values[k][1]}"
+          } + ["END"]
+        when "incr", "decr"
+          if @values.has_key?(key)
+            value = [@values[key][1].to_i.send(command == "incr" ? :+ : :-, flags.to_i), 0].max.to_s
+            @values[key] = [@values[key][0], value]
+            [value]
+          else
+            ["NOT_FOUND"]
+          end
+        when "delete"
+          [@values.delete(key) ? "DELETED" : "NOT_FOUND"]
+        when "version"
+          ["VERSION 1.4.0"]
+        else
+          ["ERROR"]
+        end
+        @mutex.synchronize do
+          @held[socket] += replies
+          flush socket unless @hung
+        end
+      end
+    end
+  end
+
+  def flush(socket)
+    socket.write @held[socket].map { |reply| "#{reply}\r\n" }.join
+    @held[socket] = []
+  end
+end
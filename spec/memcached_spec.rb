@@ -1,4 +1,6 @@
 require 'spec_helper'
+require 'tmpdir'
+require 'fileutils'
 
 describe Memcached do
   context "localhost" do
@@ -29,6 +31,56 @@ describe Memcached do
       it "should ignore nil value" do
         expect { Memcached.new("127.0.0.1:11211", :prefix => nil) }.not_to raise_error
       end
+
+      it "should accept auto_eject_hosts options" do
+        memcached = Memcached.new("127.0.0.1:11211", :auto_eject_hosts => true, :server_failure_limit => 2, :retry_timeout => 30)
+        memcached.set "foo", "bar"
+        memcached.get("foo").should == "bar"
+        memcached.shutdown
+      end
+
+      it "should accept replicas options" do
+        memcached = Memcached.new(["127.0.0.1:11211", "localhost:11211"], :replicas => 1, :hedge_delay => 5)
+        memcached.set "foo", "bar"
+        memcached.get("foo").should == "bar"
+        memcached.delete "foo"
+        expect { memcached.get "foo" }.to raise_error(Memcached::NotFound)
+        memcached.shutdown
+      end
+
+      it "should not accept replicas with array_mod distribution" do
+        expect { Memcached.new("127.0.0.1:11211", :replicas => 1, :distribution => "array_mod") }.to raise_error(Memcached::NotSupport)
+      end
+
+      it "should not accept replicas with get_batch_window" do
+        expect { Memcached.new("127.0.0.1:11211", :replicas => 1, :get_batch_window => 200) }.to raise_error(Memcached::NotSupport)
+      end
+
+      it "should accept circuit_breaker options" do
+        memcached = Memcached.new("127.0.0.1:11211", :circuit_breaker => true, :circuit_failure_rate => 0.5, :circuit_min_requests => 20, :circuit_window => 10000, :circuit_open_time => 5000)
+        memcached.set "foo", "bar"
+        memcached.get("foo").should == "bar"
+        memcached.get(["foo"]).should == {"foo" => "bar"}
+        memcached.shutdown
+      end
+
+      it "should accept weighted servers" do
+        memcached = Memcached.new(["127.0.0.1:11211:2"])
+        memcached.set "foo", "bar"
+        memcached.get("foo").should == "bar"
+        memcached.servers.should == ["127.0.0.1:11211"]
+        memcached.shutdown
+      end
+
+      it "should not accept invalid weights" do
+        expect { Memcached.new(["127.0.0.1:11211:heavy"]) }.to raise_error(ArgumentError)
+        expect { Memcached.new(["127.0.0.1:11211:0"]) }.to raise_error(ArgumentError)
+        expect { Memcached.new(["127.0.0.1:11211:-1"]) }.to raise_error(ArgumentError)
+      end
+
+      it "should not accept weighted servers with array_mod distribution" do
+        expect { Memcached.new(["127.0.0.1:11211:2"], :distribution => "array_mod") }.to raise_error(Memcached::NotSupport)
+      end
     end
 
     context "set/get" do
@@ -37,6 +89,14 @@ describe Memcached do
         @memcached.get("key").should == "value"
       end
 
+      it "should set/get values of growing sizes" do
+        [10, 10_000, 100].each do |size|
+          value = { "users" => (1..size).map { |i| "user#{i}" } }
+          @memcached.set "key", value
+          @memcached.get("key").should == value
+        end
+      end
+
       it "should set/get with compressed text" do
         @memcached.set "key", "x\234c?P?*?/?I\001\000\b8\002a"
         @memcached.get("key").should == "x\234c?P?*?/?I\001\000\b8\002a"
@@ -54,6 +114,24 @@ describe Memcached do
         expect { @memcached.get "key" }.to raise_error(Memcached::NotFound)
       end
 
+      context "get_or_nil" do
+        it "should get value" do
+          @memcached.set "key", "value"
+          @memcached.get_or_nil("key").should == "value"
+        end
+
+        it "should get nil if key is missing" do
+          @memcached.delete "key" rescue nil
+          @memcached.get_or_nil("key").should be_nil
+        end
+
+        it "should get hash of multiple keys" do
+          @memcached.set "key1", "value1"
+          @memcached.delete "key2" rescue nil
+          @memcached.get_or_nil(["key1", "key2"]).should == {"key1" => "value1"}
+        end
+      end
+
       context "multiget" do
         it "should get hash containing multiple key/value pairs" do
           @memcached.set "key1", "value1"
@@ -71,6 +149,31 @@ describe Memcached do
           @memcached.get(["key"]).should be_empty
         end
       end
+
+      context "get_each" do
+        it "should yield each key/value pair" do
+          @memcached.set "key1", "value1"
+          @memcached.set "key2", "value2"
+          @memcached.delete "key3" rescue nil
+          results = {}
+          @memcached.get_each(["key1", "key2", "key3"]) { |key, value| results[key] = value }
+          results.should == {"key1" => "value1", "key2" => "value2"}
+        end
+
+        it "should yield a single key" do
+          @memcached.set "key", "value"
+          results = []
+          @memcached.get_each("key") { |key, value| results << [key, value] }
+          results.should == [["key", "value"]]
+        end
+
+        it "should stop on break" do
+          10.times { |i| @memcached.set "key#{i}", "value#{i}" }
+          count = 0
+          @memcached.get_each(10.times.map { |i| "key#{i}" }) { count += 1; break }
+          count.should == 1
+        end
+      end
     end
 
     context "set" do
@@ -82,6 +185,29 @@ describe Memcached do
       end
     end
 
+    context "raw" do
+      it "should set/get raw strings" do
+        @memcached.set "key", "<p>value</p>", 0, false
+        @memcached.get("key").should == "<p>value</p>"
+        @memcached.get("key", false).should == "<p>value</p>"
+      end
+
+      it "should marshal other values" do
+        @memcached.set "key", 1234, 0, false
+        @memcached.get("key").should == 1234
+        @memcached.set "key", [1, 2], 0, false
+        @memcached.get("key").should == [1, 2]
+      end
+
+      it "should set raw strings by default" do
+        raw_memcached = Memcached.new("127.0.0.1:11211", :raw => true)
+        raw_memcached.set "key", "value"
+        raw_memcached.set "other_key", [1, 2], 0, true
+        @memcached.get(["key", "other_key"]).should == { "key" => "value", "other_key" => [1, 2] }
+        raw_memcached.shutdown
+      end
+    end
+
     context "add" do
       it "should add new key" do
         @memcached.delete "key" rescue nil
@@ -150,6 +276,22 @@ describe Memcached do
         @memcached.increment "intkey", 10
         @memcached.get("intkey").should == 11
       end
+
+      it "should get counters with other values" do
+        @memcached.delete "intkey" rescue nil
+        @memcached.increment "intkey"
+        @memcached.set "key", "value"
+        @memcached.get(["intkey", "key"]).should == { "intkey" => 1, "key" => "value" }
+      end
+
+      it "should get counters with marshal_zlib" do
+        zlib_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "marshal_zlib")
+        zlib_memcached.delete "intkey" rescue nil
+        zlib_memcached.increment "intkey"
+        zlib_memcached.get("intkey").should == 1
+        @memcached.get("intkey").should == 1
+        zlib_memcached.shutdown
+      end
     end
 
     context "decrement" do
@@ -185,6 +327,269 @@ describe Memcached do
       end
     end
 
+    context "set_multi" do
+      it "should set multiple key/value pairs" do
+        @memcached.set_multi("key1" => "value1", "key2" => "value2").should == {"key1" => true, "key2" => true}
+        @memcached.get(["key1", "key2"]).should == {"key1" => "value1", "key2" => "value2"}
+      end
+
+      it "should set expiry" do
+        @memcached.set_multi({"key" => "value"}, 1)
+        @memcached.get("key").should == "value"
+        sleep 1
+        expect { @memcached.get("key") }.to raise_error(Memcached::NotFound)
+      end
+    end
+
+    context "delete_multi" do
+      it "should delete multiple keys" do
+        @memcached.set "key1", "value1"
+        @memcached.delete "key2" rescue nil
+        @memcached.delete_multi(["key1", "key2"]).should == {"key1" => true, "key2" => false}
+        @memcached.get(["key1", "key2"]).should be_empty
+      end
+    end
+
+    context "async" do
+      it "should set_async/get_async" do
+        futures = (1..10).map { |i| @memcached.set_async "key#{i}", "value#{i}" }
+        futures.map(&:value).should == [nil] * 10
+        @memcached.get_async("key1").value.should == "value1"
+      end
+
+      it "should get_async with multiple keys" do
+        @memcached.set "key1", "value1"
+        @memcached.set "key2", "value2"
+        @memcached.get_async(["key1", "key2"]).value.should == {"key1" => "value1", "key2" => "value2"}
+      end
+
+      it "should get_async missing" do
+        @memcached.delete "key" rescue nil
+        expect { @memcached.get_async("key").value }.to raise_error(Memcached::NotFound)
+      end
+
+      it "should add_async existing key" do
+        @memcached.set "key", "value"
+        expect { @memcached.add_async("key", "value").value }.to raise_error(Memcached::NotStored)
+      end
+
+      it "should replace_async existing key" do
+        @memcached.set "key", "value"
+        @memcached.replace_async("key", "new_value").value
+        @memcached.get("key").should == "new_value"
+      end
+
+      it "should delete_async" do
+        @memcached.set "key", "value"
+        future = @memcached.delete_async "key"
+        future.wait(1).should be_true
+        future.should be_done
+        expect { @memcached.delete_async("key").value }.to raise_error(Memcached::NotFound)
+      end
+    end
+
+    context "local cache" do
+      before(:all) { @local_memcached = Memcached.new("127.0.0.1:11211", :local_cache_size => 100, :local_cache_ttl => 1) }
+      after(:all) { @local_memcached.shutdown }
+
+      it "should get from local cache until local ttl" do
+        @local_memcached.set "key", "value"
+        @local_memcached.get("key").should == "value"
+        @memcached.set "key", "new_value"
+        @local_memcached.get("key").should == "value"
+        sleep 1.1
+        @local_memcached.get("key").should == "new_value"
+      end
+
+      it "should invalidate local cache by its own set/delete" do
+        @local_memcached.set "key", "value"
+        @local_memcached.get("key").should == "value"
+        @local_memcached.set "key", "new_value"
+        @local_memcached.get(["key"]).should == {"key" => "new_value"}
+        @local_memcached.delete "key"
+        expect { @local_memcached.get("key") }.to raise_error(Memcached::NotFound)
+      end
+
+      it "should get local cache stats" do
+        @local_memcached.set "key", "value"
+        2.times { @local_memcached.get "key" }
+        @local_memcached.local_cache_stats["hits"].should > 0
+        @memcached.local_cache_stats.should be_nil
+      end
+    end
+
+    context "get batch" do
+      before(:all) { @batch_memcached = Memcached.new("127.0.0.1:11211", :get_batch_window => 500, :get_batch_size => 50) }
+      after(:all) { @batch_memcached.shutdown }
+
+      it "should get values from concurrent threads" do
+        10.times { |i| @memcached.set "key#{i}", "value#{i}" }
+        threads = 10.times.map { |i| Thread.new { @batch_memcached.get "key#{i}" } }
+        threads.map(&:value).should == 10.times.map { |i| "value#{i}" }
+      end
+
+      it "should get missing" do
+        @memcached.delete "key" rescue nil
+        expect { @batch_memcached.get "key" }.to raise_error(Memcached::NotFound)
+      end
+
+      it "should fail the gets of the batch being collected on shutdown" do
+        memcached = Memcached.new("127.0.0.1:11211", :get_batch_window => 2_000_000, :timeout => 5000)
+        thread = Thread.new { memcached.get "key" rescue $! }
+        sleep 0.5
+        memcached.shutdown
+        thread.join(1).should_not be_nil
+        thread.value.should_not be_kind_of(Memcached::ATimeoutOccurred)
+      end
+    end
+
+    context "value chunks" do
+      before(:all) { @chunking_memcached = Memcached.new("127.0.0.1:11211", :value_chunk_size => 1000) }
+      after(:all) { @chunking_memcached.shutdown }
+
+      it "should get a value larger than a chunk" do
+        value = "value" * 1000
+        @chunking_memcached.set "key", value
+        @chunking_memcached.get("key").should == value
+        @memcached.get("key").should == value
+      end
+
+      it "should get chunked values of multiple keys" do
+        @chunking_memcached.set "key1", "value" * 1000
+        @chunking_memcached.set "key2", "value"
+        @chunking_memcached.get(["key1", "key2"]).should == {"key1" => "value" * 1000, "key2" => "value"}
+      end
+    end
+
+    context "chunked multiget" do
+      before(:all) { @chunked_memcached = Memcached.new("127.0.0.1:11211", :multi_get_chunk_size => 3, :partial_multi_get => true) }
+      after(:all) { @chunked_memcached.shutdown }
+
+      it "should get the keys of all chunks" do
+        keys = 10.times.map { |i| "key#{i}" }
+        keys.each { |key| @memcached.set key, key }
+        @chunked_memcached.get(keys).should == Hash[keys.map { |key| [key, key] }]
+        @chunked_memcached.timed_out_servers.should be_empty
+      end
+    end
+
+    context "parallel decode" do
+      before(:all) { @parallel_memcached = Memcached.new("127.0.0.1:11211", :parallel_decode_threads => 2, :parallel_decode_min_keys => 4, :parallel_decode_min_bytes => 0) }
+      after(:all) { @parallel_memcached.shutdown }
+
+      it "should get the same values as a sequential get" do
+        keys = 50.times.map { |i| "key#{i}" }
+        keys.each_with_index { |key, i| @memcached.set key, {"index" => i, "value" => "value#{i}"} }
+        @parallel_memcached.get(keys + ["missing"]).should == @memcached.get(keys)
+      end
+
+      it "should get few keys sequentially" do
+        @memcached.set "key", "value"
+        @parallel_memcached.get(["key"]).should == {"key" => "value"}
+      end
+    end
+
+    context "marshal_zlib" do
+      before(:all) { @zlib_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "marshal_zlib", :compression_min_size => 100) }
+      after(:all) { @zlib_memcached.shutdown }
+
+      it "should set/get small and large values" do
+        ["value", "x" * 10_000, (1..1000).map { |i| "user#{i}" }].each do |value|
+          @zlib_memcached.set "key", value
+          @zlib_memcached.get("key").should == value
+        end
+      end
+
+      it "should get values set by the default transcoder" do
+        @memcached.set "key", "x" * 10_000
+        @zlib_memcached.get("key").should == "x" * 10_000
+      end
+    end
+
+    context "compact" do
+      before(:all) { @compact_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "compact") }
+      after(:all) { @compact_memcached.shutdown }
+
+      it "should set/get common values" do
+        value = { "id" => 1, :name => "user", "scores" => [1.5, 2 ** 70, -3], "admin" => false, "none" => nil, "at" => Time.at(1000000000, 123456) }
+        @compact_memcached.set "key", value
+        @compact_memcached.get("key").should == value
+      end
+
+      it "should set/get other values with marshal" do
+        value = 1..10
+        @compact_memcached.set "key", value
+        @compact_memcached.get("key").should == value
+      end
+
+      it "should get values set by the default transcoder" do
+        @memcached.set "key", { "id" => 1 }
+        @compact_memcached.get("key").should == { "id" => 1 }
+      end
+    end
+
+    context "marshal_lz" do
+      before(:all) { @lz_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "marshal_lz", :compression_min_size => 100) }
+      after(:all) { @lz_memcached.shutdown }
+
+      it "should set/get small and large values" do
+        ["value", "x" * 10_000, (1..1000).map { |i| "user#{i}" }].each do |value|
+          @lz_memcached.set "key", value
+          @lz_memcached.get("key").should == value
+        end
+      end
+
+      it "should get values set by the marshal_zlib transcoder" do
+        zlib_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "marshal_zlib", :compression_min_size => 100)
+        zlib_memcached.set "key", "x" * 10_000
+        @lz_memcached.get("key").should == "x" * 10_000
+        zlib_memcached.shutdown
+      end
+    end
+
+    context "marshal_dictionary" do
+      before(:all) do
+        @dictionary_path = Dir.mktmpdir
+        samples = (1..100).map { |i| { "id" => i, "name" => "user#{i}", "email" => "user#{i}@example.com" } }
+        File.open(File.join(@dictionary_path, "1.dict"), "wb") { |f| f.write Memcached.train_dictionary(samples) }
+        @dictionary_memcached = Memcached.new("127.0.0.1:11211", :transcoder => "marshal_dictionary", :dictionary_path => @dictionary_path)
+      end
+      after(:all) do
+        @dictionary_memcached.shutdown
+        FileUtils.rm_rf @dictionary_path
+      end
+
+      it "should set/get small and large values" do
+        [{ "id" => 1, "name" => "user1", "email" => "user1@example.com" }, "value", "x" * 10_000].each do |value|
+          @dictionary_memcached.set "key", value
+          @dictionary_memcached.get("key").should == value
+        end
+      end
+
+      it "should get values set by the default transcoder" do
+        @memcached.set "key", { "id" => 1 }
+        @dictionary_memcached.get("key").should == { "id" => 1 }
+      end
+
+      it "should need a dictionary_path" do
+        expect { Memcached.new("127.0.0.1:11211", :transcoder => "marshal_dictionary") }.to raise_error(Memcached::NotSupport)
+      end
+    end
+
+    context "with_retry" do
+      it "should return the value of the block" do
+        @memcached.set "key", "value"
+        @memcached.with_retry(:exception_retry_limit => 0, :retry_deadline => 1000) { @memcached.get "key" }.should == "value"
+      end
+
+      it "should accept retry options" do
+        memcached = Memcached.new("127.0.0.1:11211", :retry_deadline => 1000, :retry_backoff => 5, :retry_backoff_max => 50, :retry_budget => 10)
+        memcached.set "key", "value"
+        memcached.get("key").should == "value"
+        memcached.shutdown
+      end
+    end
+
     context "namespace/prefix_key" do
       it "should get/set with namespace" do
         memcached = Memcached.new("127.0.0.1:11211", :namespace => "jruby")
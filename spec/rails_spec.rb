@@ -54,6 +54,11 @@ describe Memcached::Rails do
         @memcached.delete "key" rescue nil
         @memcached.exist?("key").should be_false
       end
+
+      it "should return true if key is nil" do
+        @memcached.set "key", nil
+        @memcached.exist?("key").should be_true
+      end
     end
 
     context "get_multi" do
@@ -87,6 +92,16 @@ describe Memcached::Rails do
         @memcached.read("key").should == "value"
       end
 
+      it "should write raw strings" do
+        @memcached.write("key", "<p>value</p>", :raw => true).should be_true
+        @memcached.read("key", :raw => true).should == "<p>value</p>"
+      end
+
+      it "should write marshaled values" do
+        @memcached.write("key", [1, 2]).should be_true
+        @memcached.read("key").should == [1, 2]
+      end
+
       it "should expire" do
         @memcached.write("key", "value", :expires_in => 1)
         @memcached.read("key").should == "value"
@@ -105,6 +120,86 @@ describe Memcached::Rails do
         @memcached.delete "key" rescue nil
         @memcached.fetch("key") { "new value" }.should == "new value"
       end
+
+      it "should compute missing key once for concurrent fetches" do
+        @memcached.delete "key" rescue nil
+        calls = 0
+        mutex = Mutex.new
+        threads = 10.times.map do
+          Thread.new { @memcached.fetch("key") { mutex.synchronize { calls += 1 }; sleep 0.5; "new value" } }
+        end
+        threads.map(&:value).should == ["new value"] * 10
+        calls.should == 1
+      end
+
+      it "should raise the exception of the computing thread in concurrent fetches" do
+        @memcached.delete "key" rescue nil
+        calls = 0
+        mutex = Mutex.new
+        threads = 10.times.map do
+          Thread.new do
+            begin
+              @memcached.fetch("key") { mutex.synchronize { calls += 1 }; sleep 0.5; raise ArgumentError, "failed" }
+            rescue ArgumentError => e
+              e.message
+            end
+          end
+        end
+        threads.map(&:value).should == ["failed"] * 10
+        calls.should == 1
+      end
+
+      it "should compute a key fetched again while computing it" do
+        @memcached.delete "key" rescue nil
+        @memcached.fetch("key") { @memcached.fetch("key") { "inner value" } + " outer value" }.should == "inner value outer value"
+      end
+
+      context "with race_condition_ttl" do
+        it "should write if key is missing" do
+          @memcached.delete "key" rescue nil
+          @memcached.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "new value" }.should == "new value"
+          @memcached.read("key").should == "new value"
+        end
+
+        it "should read stale value while another process recomputes it" do
+          @memcached.delete "key" rescue nil
+          @memcached.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "value" }
+          sleep 1.1
+          other = Memcached::Rails.new("127.0.0.1:11211")
+          thread = Thread.new { other.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { sleep 0.5; "new value" } }
+          sleep 0.1
+          @memcached.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "another value" }.should == "value"
+          thread.value.should == "new value"
+          @memcached.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "another value" }.should == "new value"
+          other.shutdown
+        end
+
+        it "should write the entry marshaled with a raw client" do
+          raw = Memcached::Rails.new("127.0.0.1:11211", :raw => true)
+          raw.delete "key" rescue nil
+          raw.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "value" }.should == "value"
+          raw.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "another value" }.should == "value"
+          raw.shutdown
+        end
+
+        it "should recompute a stale value once with string_return_types" do
+          strings = Memcached::Rails.new("127.0.0.1:11211", :string_return_types => true)
+          strings.delete "key" rescue nil
+          strings.delete "key/race_condition_lock" rescue nil
+          strings.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { "value" }
+          sleep 1.1
+          # other processes, fetches of one client already compute once
+          others = (1..3).map { Memcached::Rails.new("127.0.0.1:11211", :string_return_types => true) }
+          computed = []
+          threads = others.map do |other|
+            Thread.new { other.fetch("key", :expires_in => 1, :race_condition_ttl => 5) { computed << 1; sleep 0.5; "new value" } }
+          end
+          threads.each { |thread| thread.join }
+          computed.size.should == 1
+          others.each { |other| other.shutdown }
+          strings.shutdown
+        end
+      end
     end
 
     context "add" do
@@ -0,0 +1,134 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.ExtendedMemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * AutoEjector removes a node from the continuum after server_failure_limit
+ * consecutive failures, so that its keys rehash to the other nodes, and
+ * probes it every retry_timeout seconds with a version, like libmemcached's
+ * auto_eject_hosts. The node is only added back once it replies, so that a
+ * hung node stays ejected.
+ *
+ * A node that spymemcached still sees disconnected isn't probed, the last
+ * live node is never ejected.
+ *
+ */
+public class AutoEjector {
+    private final ExtendedMemcachedClient client;
+
+    private final NodeLocator locator;
+
+    private final int failureLimit;
+
+    private final long retryTimeout;
+
+    private final ConcurrentMap<MemcachedNode, AtomicInteger> failures = new ConcurrentHashMap<MemcachedNode, AtomicInteger>();
+
+    private final Map<MemcachedNode, Long> ejectedNodes = new ConcurrentHashMap<MemcachedNode, Long>();
+
+    private volatile long nextRetry = Long.MAX_VALUE;
+
+    /**
+     * @param failureLimit consecutive failures before ejecting a node
+     * @param retryTimeout seconds before adding an ejected node back
+     */
+    public AutoEjector(ExtendedMemcachedClient client, int failureLimit, int retryTimeout) {
+        this.client = client;
+        this.locator = client.getLocator();
+        this.failureLimit = failureLimit;
+        this.retryTimeout = retryTimeout * 1000L;
+    }
+
+    public void success(String key) {
+        AtomicInteger count = failures.get(locator.getPrimary(key));
+        if (count != null && count.get() > 0) {
+            count.set(0);
+        }
+        retry();
+    }
+
+    public void failure(String key) {
+        MemcachedNode node = locator.getPrimary(key);
+        AtomicInteger count = failures.get(node);
+        if (count == null) {
+            failures.putIfAbsent(node, new AtomicInteger());
+            count = failures.get(node);
+        }
+        if (count.incrementAndGet() >= failureLimit) {
+            eject(node);
+        }
+        retry();
+    }
+
+    public boolean isEjected(MemcachedNode node) {
+        return ejectedNodes.containsKey(node);
+    }
+
+    private synchronized void eject(MemcachedNode node) {
+        if (ejectedNodes.containsKey(node) || ejectedNodes.size() + 1 >= locator.getAll().size()) {
+            return;
+        }
+        long retryAt = System.currentTimeMillis() + retryTimeout;
+        ejectedNodes.put(node, retryAt);
+        nextRetry = Math.min(nextRetry, retryAt);
+        failures.get(node).set(0);
+        updateLocator();
+    }
+
+    private void retry() {
+        if (System.currentTimeMillis() < nextRetry) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now < nextRetry) {
+                return;
+            }
+            long retryAt = Long.MAX_VALUE;
+            for (Map.Entry<MemcachedNode, Long> entry : ejectedNodes.entrySet()) {
+                if (entry.getValue() <= now) {
+                    if (entry.getKey().isActive()) {
+                        probe(entry.getKey());
+                    }
+                    entry.setValue(now + retryTimeout);
+                }
+                retryAt = Math.min(retryAt, entry.getValue());
+            }
+            nextRetry = retryAt;
+        }
+    }
+
+    private void probe(final MemcachedNode node) {
+        client.version(node, new Runnable() {
+            public void run() {
+                add(node);
+            }
+        });
+    }
+
+    private synchronized void add(MemcachedNode node) {
+        if (ejectedNodes.remove(node) != null) {
+            updateLocator();
+        }
+    }
+
+    private void updateLocator() {
+        List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+        for (MemcachedNode node : locator.getAll()) {
+            if (!ejectedNodes.containsKey(node)) {
+                nodes.add(node);
+            }
+        }
+        locator.updateLocator(nodes);
+    }
+}
@@ -0,0 +1,175 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *
+ * CircuitBreaker stops sending operations to a node which fails too often,
+ * so that callers fail fast instead of waiting for timeouts on it.
+ *
+ * The circuit of a node opens once at least circuit_min_requests operations
+ * were seen in a window of circuit_window milliseconds and circuit_failure_rate
+ * of them failed. After circuit_open_time milliseconds it half opens: one
+ * probe operation is let through, its success closes the circuit, its
+ * failure opens it again. A probe whose outcome is never recorded, like a
+ * multi get left by a break, is replaced by another after circuit_open_time.
+ *
+ */
+public class CircuitBreaker {
+    private final NodeLocator locator;
+
+    private final double failureRate;
+
+    private final int minRequests;
+
+    private final long window;
+
+    private final long openTime;
+
+    private final ConcurrentMap<MemcachedNode, Circuit> circuits = new ConcurrentHashMap<MemcachedNode, Circuit>();
+
+    /**
+     * @param failureRate ratio of failed operations opening the circuit
+     * @param minRequests min number of operations in a window before opening the circuit
+     * @param window milliseconds of a window
+     * @param openTime milliseconds before half opening the circuit
+     */
+    public CircuitBreaker(NodeLocator locator, double failureRate, int minRequests, long window, long openTime) {
+        this.locator = locator;
+        this.failureRate = failureRate;
+        this.minRequests = minRequests;
+        this.window = window;
+        this.openTime = openTime;
+    }
+
+    /**
+     * @return true if an operation on the key may be sent to its node
+     */
+    public boolean allow(String key) {
+        return getCircuit(key).allow();
+    }
+
+    /**
+     * Same as !allow, for the keys of a multi get: once the circuit half
+     * opens the first key of the node is let through as the probe.
+     *
+     * @return true if the key must not be sent to its node
+     */
+    public boolean isOpen(String key) {
+        return !allow(key);
+    }
+
+    public void success(String key) {
+        getCircuit(key).success();
+    }
+
+    public void failure(String key) {
+        getCircuit(key).failure();
+    }
+
+    /**
+     * Records the outcome of an operation on node, like the gets of a multi
+     * get, which have no key of their own.
+     */
+    public void success(MemcachedNode node) {
+        getCircuit(node).success();
+    }
+
+    public void failure(MemcachedNode node) {
+        getCircuit(node).failure();
+    }
+
+    private Circuit getCircuit(String key) {
+        return getCircuit(locator.getPrimary(key));
+    }
+
+    private Circuit getCircuit(MemcachedNode node) {
+        Circuit circuit = circuits.get(node);
+        if (circuit == null) {
+            circuits.putIfAbsent(node, new Circuit());
+            circuit = circuits.get(node);
+        }
+        return circuit;
+    }
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private class Circuit {
+        private State state = State.CLOSED;
+
+        private long windowStart = System.currentTimeMillis();
+
+        private int requests;
+
+        private int failures;
+
+        private long openedAt;
+
+        private boolean probing;
+
+        private long probedAt;
+
+        private synchronized boolean allow() {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now - openedAt >= openTime) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if (state == State.HALF_OPEN && (!probing || now - probedAt >= openTime)) {
+                probing = true;
+                probedAt = now;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void success() {
+            if (state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                resetWindow(System.currentTimeMillis());
+            } else if (state == State.CLOSED) {
+                record(false);
+            }
+        }
+
+        private synchronized void failure() {
+            if (state == State.HALF_OPEN) {
+                open();
+            } else if (state == State.CLOSED) {
+                record(true);
+            }
+        }
+
+        private void record(boolean failed) {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= window) {
+                resetWindow(now);
+            }
+            requests++;
+            if (failed) {
+                failures++;
+                if (requests >= minRequests && failures >= failureRate * requests) {
+                    open();
+                }
+            }
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void resetWindow(long now) {
+            windowStart = now;
+            requests = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.openfeint.memcached;
+
+import com.openfeint.memcached.error.Error;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * Future wraps a pending spymemcached operation, so that callers can fire
+ * many operations and join them later.
+ *
+ * Subclasses convert the raw spymemcached result into the ruby value
+ * returned by the blocking Memcached method.
+ *
+ */
+@JRubyClass(name = "Memcached::Future")
+public abstract class Future extends RubyObject {
+    private final java.util.concurrent.Future<?> future;
+
+    private final long timeout;
+
+    private IRubyObject value;
+
+    private RaiseException exception;
+
+    public Future(final Ruby ruby, java.util.concurrent.Future<?> future, long timeout) {
+        super(ruby, ruby.getModule("Memcached").getClass("Future"));
+
+        this.future = future;
+        this.timeout = timeout;
+    }
+
+    @JRubyMethod
+    public IRubyObject value(ThreadContext context) {
+        Ruby ruby = context.getRuntime();
+        synchronized (this) {
+            if (value == null && exception == null) {
+                try {
+                    value = convert(context, future.get(timeout, TimeUnit.MILLISECONDS));
+                } catch (RaiseException e) {
+                    exception = e;
+                } catch (TimeoutException e) {
+                    exception = Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+                } catch (ExecutionException e) {
+                    if ("net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
+                        exception = Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+                    } else {
+                        exception = ruby.newRuntimeError(e.getLocalizedMessage());
+                    }
+                } catch (RuntimeException e) {
+                    exception = ruby.newRuntimeError(e.getLocalizedMessage());
+                } catch (InterruptedException e) {
+                    throw ruby.newThreadError(e.getLocalizedMessage());
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return value;
+    }
+
+    @JRubyMethod(name = "done?")
+    public IRubyObject done_p(ThreadContext context) {
+        return context.getRuntime().newBoolean(future.isDone());
+    }
+
+    /**
+     * Waits until the operation completes or the given seconds elapse,
+     * the operation timeout is used if no seconds given.
+     *
+     * @return true if the operation completed, false otherwise
+     */
+    @JRubyMethod(name = "wait", optional = 1)
+    public IRubyObject wait(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        long millis = timeout;
+        if (args.length > 0 && !args[0].isNil()) {
+            millis = (long) (RubyNumeric.num2dbl(args[0]) * 1000);
+        }
+        try {
+            future.get(millis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return ruby.getFalse();
+        } catch (ExecutionException e) {
+            // the error will be raised by value
+        } catch (RuntimeException e) {
+            // the error will be raised by value
+        } catch (InterruptedException e) {
+            throw ruby.newThreadError(e.getLocalizedMessage());
+        }
+        return ruby.newBoolean(future.isDone());
+    }
+
+    protected abstract IRubyObject convert(ThreadContext context, Object result) throws InterruptedException;
+}
@@ -0,0 +1,174 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * GetBatcher merges the single key gets issued by many threads within a
+ * small window into one bulk get, spymemcached then sends one get per node
+ * for the whole batch.
+ *
+ * A daemon thread collects the pending keys until the window elapses or the
+ * batch is full, issues the bulk get, and every caller waits on the shared
+ * future for its own key.
+ *
+ */
+public class GetBatcher implements Runnable {
+    private final MemcachedClient client;
+
+    private final Transcoder<Object> transcoder;
+
+    private final long window;
+
+    private final int maxSize;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param window microseconds to wait for more keys after the first one
+     * @param maxSize max number of keys in a batch
+     */
+    public GetBatcher(MemcachedClient client, Transcoder<Object> transcoder, int window, int maxSize) {
+        this.client = client;
+        this.transcoder = transcoder;
+        this.window = TimeUnit.MICROSECONDS.toNanos(window);
+        this.maxSize = maxSize;
+
+        thread = new Thread(this, "Memcached GetBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets a key in the next batch, it behaves like MemcachedClient#get.
+     *
+     * @param timeout milliseconds to wait for the value
+     */
+    public Object get(String key, long timeout) {
+        if (!running) {
+            throw new IllegalStateException("Shutting down");
+        }
+        Request request = new Request(key);
+        queue.add(request);
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            if (!request.issued.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new OperationTimeoutException("Timeout waiting for batch of " + key);
+            }
+            if (request.error != null) {
+                throw request.error;
+            }
+            long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+            return request.future.get(remaining, TimeUnit.MILLISECONDS).get(key);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for value", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception waiting for value", e);
+        } catch (TimeoutException e) {
+            throw new OperationTimeoutException("Timeout waiting for value", e);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public void run() {
+        while (running) {
+            List<Request> batch = new ArrayList<Request>();
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + window;
+                while (batch.size() < maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Request request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                }
+                issue(batch);
+            } catch (InterruptedException e) {
+                // shutdown, the batch being collected fails like the pending keys
+                for (Request request : batch) {
+                    request.fail(new IllegalStateException("Shutting down"));
+                }
+            }
+        }
+        List<Request> pending = new ArrayList<Request>();
+        queue.drainTo(pending);
+        for (Request request : pending) {
+            request.fail(new IllegalStateException("Shutting down"));
+        }
+    }
+
+    private void issue(List<Request> batch) {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Request request : batch) {
+            keys.add(request.key);
+        }
+        Future<Map<String, Object>> future;
+        try {
+            future = client.asyncGetBulk(keys, transcoder);
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.fail(e);
+            }
+            return;
+        }
+        for (Request request : batch) {
+            request.issue(future);
+        }
+    }
+
+    private static class Request {
+        private final String key;
+
+        private final CountDownLatch issued = new CountDownLatch(1);
+
+        private volatile Future<Map<String, Object>> future;
+
+        private volatile RuntimeException error;
+
+        private Request(String key) {
+            this.key = key;
+        }
+
+        private void issue(Future<Map<String, Object>> future) {
+            this.future = future;
+            issued.countDown();
+        }
+
+        private void fail(RuntimeException error) {
+            this.error = error;
+            issued.countDown();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.openfeint.memcached;
+
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * LocalCache is an in-process cache in front of memcached, it keeps the
+ * decoded values of the hottest keys so that they don't pay a round trip
+ * and an unmarshal on every get.
+ *
+ * Keys are spread over lock striped segments, each of them is a LRU map,
+ * entries expire after the local ttl no matter what the memcached expiry is,
+ * which bounds how long another client's write can be missed.
+ *
+ * Each segment counts its invalidations, a value got while a key of its
+ * segment was invalidated isn't cached, as it may predate the write.
+ *
+ */
+public class LocalCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    private final long ttl;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize max number of entries
+     * @param ttl max seconds an entry is kept locally
+     */
+    public LocalCache(int maxSize, int ttl) {
+        this.ttl = ttl * 1000L;
+        int segmentSize = Math.max(maxSize / SEGMENTS, 1);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @return the cached value, or null if it's missing or expired
+     */
+    public IRubyObject get(String key) {
+        Segment segment = segmentFor(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * @return the invalidation counts of the segments, to put the values
+     *         got from memcached after it
+     */
+    public long[] stamp() {
+        long[] stamp = new long[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            synchronized (segments[i]) {
+                stamp[i] = segments[i].invalidations;
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Caches the value of the key, unless a key of its segment was
+     * invalidated since stamp was taken.
+     */
+    public void put(String key, IRubyObject value, long[] stamp) {
+        int index = segmentIndex(key);
+        Segment segment = segments[index];
+        synchronized (segment) {
+            if (segment.invalidations == stamp[index]) {
+                segment.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+            segment.invalidations++;
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.invalidations++;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (SEGMENTS - 1);
+    }
+
+    private static class Entry {
+        private final IRubyObject value;
+
+        private final long expiresAt;
+
+        private Entry(IRubyObject value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Segment extends LinkedHashMap<String, Entry> {
+        private final int maxSize;
+
+        private long invalidations;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package com.openfeint.memcached;
 
 import com.openfeint.memcached.error.Error;
+import com.openfeint.memcached.transcoder.CompactTranscoder;
+import com.openfeint.memcached.transcoder.MarshalDictionaryTranscoder;
+import com.openfeint.memcached.transcoder.MarshalLzTranscoder;
 import com.openfeint.memcached.transcoder.MarshalTranscoder;
 import com.openfeint.memcached.transcoder.MarshalZlibTranscoder;
+import com.openfeint.memcached.transcoder.RawTranscoder;
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.ConnectionFactoryBuilder;
 import net.spy.memcached.ConnectionFactoryBuilder.Locator;
 import net.spy.memcached.ConnectionFactoryBuilder.Protocol;
 import net.spy.memcached.DefaultHashAlgorithm;
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.ExtendedMemcachedClient;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.ops.StoreType;
 import net.spy.memcached.transcoders.Transcoder;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
@@ -20,7 +29,9 @@ import org.jruby.RubyObject;
 import org.jruby.RubyString;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.JumpException;
 import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
@@ -28,25 +39,61 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @JRubyClass(name = "Memcached")
 public class Memcached extends RubyObject {
-    private MemcachedClient client;
+    private ExtendedMemcachedClient client;
 
     private Transcoder transcoder;
 
+    private Transcoder rawTranscoder;
+
+    private boolean raw;
+
     private int ttl;
 
     private int timeout;
 
+    private long operationTimeout;
+
     private int exceptionRetryLimit;
 
     private String prefixKey;
 
+    private LocalCache localCache;
+
+    private GetBatcher getBatcher;
+
+    private AutoEjector autoEjector;
+
+    private Replicator replicator;
+
+    private RetryPolicy retryPolicy;
+
+    private CircuitBreaker circuitBreaker;
+
+    private ParallelDecoder parallelDecoder;
+
+    private int multiGetChunkSize;
+
+    private ValueChunker valueChunker;
+
+    private boolean partialMultiGet;
+
+    // servers of the gets which timed out in the last multi get of the thread
+    private final ThreadLocal<List<MemcachedNode>> timedOutServers = new ThreadLocal<List<MemcachedNode>>();
+
+    private final ThreadLocal<RetryPolicy> callRetryPolicy = new ThreadLocal<RetryPolicy>();
+
     public Memcached(final Ruby ruby, RubyClass rubyClass) {
         super(ruby, rubyClass);
 
@@ -87,262 +134,483 @@ public class Memcached extends RubyObject {
         Ruby ruby = context.getRuntime();
         List<IRubyObject> addresses = new ArrayList<IRubyObject>();
         for (SocketAddress address : client.getAvailableServers()) {
-            String addressStr = address.toString();
-            if (addressStr.indexOf("/") == 0) {
-                addressStr = addressStr.replace("/", "");
+            addresses.add(ruby.newString(toAddress(address)));
+        }
+        return ruby.newArray(addresses);
+    }
+
+    /**
+     * Returns the servers whose gets timed out in the last multi get of the
+     * current thread, when partial_multi_get returned the other keys.
+     */
+    @JRubyMethod(name = "timed_out_servers")
+    public IRubyObject timedOutServers(ThreadContext context) {
+        Ruby ruby = context.getRuntime();
+        List<IRubyObject> addresses = new ArrayList<IRubyObject>();
+        List<MemcachedNode> nodes = timedOutServers.get();
+        if (nodes != null) {
+            for (MemcachedNode node : nodes) {
+                addresses.add(ruby.newString(toAddress(node.getSocketAddress())));
             }
-            addresses.add(ruby.newString(addressStr));
         }
         return ruby.newArray(addresses);
     }
 
     @JRubyMethod(name = "add", required = 2, optional = 3)
-    public IRubyObject add(ThreadContext context, IRubyObject[] args) {
-        Ruby ruby = context.getRuntime();
-        String key = getFullKey(args[0].toString());
-        IRubyObject value = args[1];
-        int expiry = getExpiry(args);
-        int retry = 0;
-        while (true) {
-            try {
-                Boolean result = (Boolean) client.add(key, expiry, value, transcoder).get();
+    public IRubyObject add(final ThreadContext context, IRubyObject[] args) {
+        final Ruby ruby = context.getRuntime();
+        final String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        final IRubyObject value = args[1];
+        final int expiry = getExpiry(args);
+        final Transcoder valueTranscoder = getTranscoder(args, 3, expiry);
+        return execute(context, key, false, false, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
+                Boolean result = (Boolean) client.add(key, expiry, value, valueTranscoder).get(timeout, TimeUnit.MILLISECONDS);
+                invalidateLocal(key);
+                nodeSucceeded(key);
                 if (!result) {
                     throw Error.newNotStored(ruby, "not stored");
                 }
+                replicate(key, expiry, value, valueTranscoder);
                 return context.nil;
-            } catch (RaiseException e) {
-                throw e;
-            } catch (ExecutionException e) {
-                if ("net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (RuntimeException e) {
-                if (e.getCause() != null &&
-                    "net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (InterruptedException e) {
-                throw ruby.newThreadError(e.getLocalizedMessage());
             }
-        }
+        });
     }
 
     @JRubyMethod(name = "replace", required = 2, optional = 3)
-    public IRubyObject replace(ThreadContext context, IRubyObject [] args) {
-        Ruby ruby = context.getRuntime();
-        String key = getFullKey(args[0].toString());
-        IRubyObject value = args[1];
-        int expiry = getExpiry(args);
-        int retry = 0;
-        while (true) {
-            try {
-                Boolean result = (Boolean) client.replace(key, expiry, value, transcoder).get();
+    public IRubyObject replace(final ThreadContext context, IRubyObject[] args) {
+        final Ruby ruby = context.getRuntime();
+        final String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        final IRubyObject value = args[1];
+        final int expiry = getExpiry(args);
+        final Transcoder valueTranscoder = getTranscoder(args, 3, expiry);
+        return execute(context, key, false, true, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
+                Boolean result = (Boolean) client.replace(key, expiry, value, valueTranscoder).get(timeout, TimeUnit.MILLISECONDS);
+                invalidateLocal(key);
+                nodeSucceeded(key);
                 if (!result) {
                     throw Error.newNotStored(ruby, "not stored");
                 }
+                replicate(key, expiry, value, valueTranscoder);
                 return context.nil;
-            } catch (RaiseException e) {
-                throw e;
-            } catch (ExecutionException e) {
-                if ("net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (RuntimeException e) {
-                if (e.getCause() != null &&
-                    "net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (InterruptedException e) {
-                throw ruby.newThreadError(e.getLocalizedMessage());
             }
-        }
+        });
     }
 
     @JRubyMethod(name = "set", required = 2, optional = 3)
-    public IRubyObject set(ThreadContext context, IRubyObject[] args) {
-        Ruby ruby = context.getRuntime();
-        String key = getFullKey(args[0].toString());
-        IRubyObject value = args[1];
-        int expiry = getExpiry(args);
-        int retry = 0;
-        while (true) {
-            try {
-                Boolean result = (Boolean) client.set(key, expiry, value, transcoder).get();
+    public IRubyObject set(final ThreadContext context, IRubyObject[] args) {
+        final Ruby ruby = context.getRuntime();
+        final String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        final IRubyObject value = args[1];
+        final int expiry = getExpiry(args);
+        final Transcoder valueTranscoder = getTranscoder(args, 3, expiry);
+        return execute(context, key, false, true, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
+                Boolean result = (Boolean) client.set(key, expiry, value, valueTranscoder).get(timeout, TimeUnit.MILLISECONDS);
+                invalidateLocal(key);
+                nodeSucceeded(key);
                 if (!result) {
                     throw Error.newNotStored(ruby, "not stored");
                 }
+                replicate(key, expiry, value, valueTranscoder);
                 return context.nil;
-            } catch (RaiseException e) {
-                throw e;
-            } catch (ExecutionException e) {
-                if ("net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (RuntimeException e) {
-                if (e.getCause() != null &&
-                    "net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                    }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
-                }
-            } catch (InterruptedException e) {
-                throw ruby.newThreadError(e.getLocalizedMessage());
             }
-        }
+        });
     }
 
     @JRubyMethod(name = "get", required = 1, optional = 1)
     public IRubyObject get(ThreadContext context, IRubyObject[] args) {
-        Ruby ruby = context.getRuntime();
-        IRubyObject keys = args[0];
-        int retry = 0;
-        while (true) {
-            try {
-                if (keys instanceof RubyString) {
-                    Object ret = client.get(getFullKey(keys.toString()), transcoder);
-                    if (ret == null) {
-                        throw Error.newNotFound(ruby, "not found");
+        return getValue(context, args, true);
+    }
+
+    /**
+     * Gets like get, but returns nil instead of raising NotFound for a
+     * missing key, which saves building the exception.
+     */
+    @JRubyMethod(name = "get_or_nil", required = 1, optional = 1)
+    public IRubyObject getOrNil(ThreadContext context, IRubyObject[] args) {
+        IRubyObject value = getValue(context, args, false);
+        return value != null ? value : context.nil;
+    }
+
+    /**
+     * Yields the key and value of each key found as soon as its node
+     * responds, so that a slow node only delays its own keys and the values
+     * are never collected in a hash. Keys already yielded are not got again
+     * on a timeout, which raises ATimeoutOccurred unless partial_multi_get
+     * is set.
+     */
+    @JRubyMethod(name = "get_each", required = 1)
+    public IRubyObject getEach(final ThreadContext context, IRubyObject keys, final Block block) {
+        final Ruby ruby = context.getRuntime();
+        List<String> keyList = keys instanceof RubyArray ? keys.convertToArray() : Collections.singletonList(keys.toString());
+        // keys by full key, the keys are yielded
+        final Map<String, String> missingKeys = new LinkedHashMap<String, String>();
+        for (String key : keyList) {
+            String fullKey = getFullKey(key);
+            IRubyObject value = localCache != null ? localCache.get(fullKey) : null;
+            if (value != null) {
+                block.yieldSpecific(context, ruby.newString(key), value);
+            } else if (circuitBreaker == null || !circuitBreaker.isOpen(fullKey)) {
+                // keys of nodes with an open circuit are missing
+                missingKeys.put(fullKey, key);
+            }
+        }
+        if (missingKeys.isEmpty()) {
+            return context.nil;
+        }
+        return execute(context, null, true, false, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
+                timedOutServers.remove();
+                long[] stamp = localCache != null ? localCache.stamp() : null;
+                MultiGet multiGet = new MultiGet(client, missingKeys.keySet(), multiGetChunkSize, transcoder.getMaxSize());
+                long deadline = System.currentTimeMillis() + timeout;
+                try {
+                    Map.Entry<String, CachedData> entry;
+                    while ((entry = multiGet.next(Math.max(deadline - System.currentTimeMillis(), 0))) != null) {
+                        String key = entry.getKey();
+                        Object decoded = valueChunker.resolve(key, transcoder.decode(entry.getValue()), transcoder, timeout);
+                        if (decoded == null) {
+                            continue;
+                        }
+                        IRubyObject value = toRubyValue(ruby, decoded);
+                        if (localCache != null) {
+                            localCache.put(key, value, stamp);
+                        }
+                        long yielded = System.currentTimeMillis();
+                        block.yieldSpecific(context, ruby.newString(missingKeys.get(key)), value);
+                        // the block doesn't count in the timeout
+                        deadline += System.currentTimeMillis() - yielded;
                     }
-                    IRubyObject value;
-                    if (ret instanceof IRubyObject) {
-                        value = (IRubyObject) ret;
+                    multiGetCompleted(multiGet, false);
+                } catch (TimeoutException e) {
+                    multiGetCompleted(multiGet, true);
+                    multiGetTimedOut(multiGet, e);
+                } finally {
+                    multiGet.cancel();
+                }
+                return context.nil;
+            }
+        });
+    }
+
+    /**
+     * @param raiseNotFound true to raise NotFound for a missing key, else
+     *                      null is returned
+     */
+    protected IRubyObject getValue(ThreadContext context, IRubyObject[] args, final boolean raiseNotFound) {
+        final Ruby ruby = context.getRuntime();
+        final IRubyObject keys = args[0];
+        if (keys instanceof RubyString) {
+            final String key = getFullKey(keys.toString());
+            if (localCache != null) {
+                IRubyObject value = localCache.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return execute(context, key, true, true, new Call() {
+                public IRubyObject call(long timeout) throws Exception {
+                    long[] stamp = localCache != null ? localCache.stamp() : null;
+                    Object ret;
+                    if (getBatcher != null) {
+                        ret = getBatcher.get(key, timeout);
+                    } else if (replicator != null) {
+                        ret = replicator.get(key, timeout);
                     } else {
-                        value = ruby.newFixnum((Long) ret);
+                        ret = client.asyncGet(key, transcoder).get(timeout, TimeUnit.MILLISECONDS);
                     }
-                    return value;
-                } else if (keys instanceof RubyArray) {
-                    RubyHash results = RubyHash.newHash(ruby);
-
-                    Map<String, IRubyObject> bulkResults = (Map<String, IRubyObject>) client.getBulk(getFullKeys(keys.convertToArray()), transcoder);
-                    for (String key : (List<String>) keys.convertToArray()) {
-                        if (bulkResults.containsKey(getFullKey(key))) {
-                            results.put(key, bulkResults.get(getFullKey(key)));
+                    nodeSucceeded(key);
+                    ret = valueChunker.resolve(key, ret, transcoder, timeout);
+                    if (ret == null) {
+                        if (raiseNotFound) {
+                            throw Error.newNotFound(ruby, "not found");
                         }
+                        return null;
                     }
-                    return results;
+                    IRubyObject value = toRubyValue(ruby, ret);
+                    if (localCache != null) {
+                        localCache.put(key, value, stamp);
+                    }
+                    return value;
                 }
-            } catch (RaiseException e) {
-                throw e;
-            } catch (OperationTimeoutException e) {
-                if (retry == exceptionRetryLimit) {
-                    throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+            });
+        } else if (keys instanceof RubyArray) {
+            final List<String> fullKeys = getFullKeys(keys.convertToArray());
+            final Map<String, Object> bulkResults = new HashMap<String, Object>();
+            final List<String> missingKeys = new ArrayList<String>();
+            for (String key : fullKeys) {
+                IRubyObject value = localCache != null ? localCache.get(key) : null;
+                if (value != null) {
+                    bulkResults.put(key, value);
+                } else if (circuitBreaker == null || !circuitBreaker.isOpen(key)) {
+                    // keys of nodes with an open circuit are missing
+                    missingKeys.add(key);
                 }
-                retry++;
-            } catch (RuntimeException e) {
-                throw ruby.newRuntimeError(e.getLocalizedMessage());
             }
+            if (!missingKeys.isEmpty()) {
+                execute(context, null, true, true, new Call() {
+                    public IRubyObject call(long timeout) throws Exception {
+                        timedOutServers.remove();
+                        long[] stamp = localCache != null ? localCache.stamp() : null;
+                        MultiGet multiGet = new MultiGet(client, missingKeys, multiGetChunkSize, transcoder.getMaxSize());
+                        Map<String, CachedData> data;
+                        try {
+                            data = multiGet.getAll(timeout);
+                            multiGetCompleted(multiGet, false);
+                        } catch (TimeoutException e) {
+                            multiGetCompleted(multiGet, true);
+                            multiGetTimedOut(multiGet, e);
+                            data = multiGet.getReceived();
+                        } finally {
+                            multiGet.cancel();
+                        }
+                        Map<String, Object> results;
+                        if (parallelDecoder != null) {
+                            results = parallelDecoder.decode(data);
+                        } else {
+                            results = new HashMap<String, Object>();
+                            for (Map.Entry<String, CachedData> entry : data.entrySet()) {
+                                results.put(entry.getKey(), transcoder.decode(entry.getValue()));
+                            }
+                        }
+                        valueChunker.resolve(results, transcoder, timeout);
+                        if (localCache == null) {
+                            bulkResults.putAll(results);
+                        } else {
+                            for (Map.Entry<String, Object> entry : results.entrySet()) {
+                                IRubyObject value = toRubyValue(ruby, entry.getValue());
+                                localCache.put(entry.getKey(), value, stamp);
+                                bulkResults.put(entry.getKey(), value);
+                            }
+                        }
+                        return ruby.getNil();
+                    }
+                });
+            }
+            return toRubyHash(ruby, keys.convertToArray(), fullKeys, bulkResults);
         }
+        return context.nil;
     }
 
     @JRubyMethod(name = { "increment", "incr" }, required = 1, optional = 2)
     public IRubyObject incr(ThreadContext context, IRubyObject[] args) {
-        Ruby ruby = context.getRuntime();
-        String key = getFullKey(args[0].toString());
-        int by = getIncrDecrBy(args);
-        int expiry = getExpiry(args);
-        int retry = 0;
-        while (true) {
-            try {
+        final Ruby ruby = context.getRuntime();
+        final String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        final int by = getIncrDecrBy(args);
+        final int expiry = getExpiry(args);
+        return execute(context, key, false, false, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
                 long result = client.incr(key, by, 1, expiry);
+                invalidateLocal(key);
+                nodeSucceeded(key);
+                // counters are kept on their primary only
+                deleteReplicas(key);
                 return ruby.newFixnum(result);
-            } catch (OperationTimeoutException e) {
-                if (retry == exceptionRetryLimit) {
-                    throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                }
-                retry++;
             }
-        }
+        });
     }
 
     @JRubyMethod(name = { "decrement", "decr" }, required = 1, optional = 2)
     public IRubyObject decr(ThreadContext context, IRubyObject[] args) {
-        Ruby ruby = context.getRuntime();
-        String key = getFullKey(args[0].toString());
-        int by = getIncrDecrBy(args);
-        int expiry = getExpiry(args);
-        int retry = 0;
-        while (true) {
-            try {
+        final Ruby ruby = context.getRuntime();
+        final String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        final int by = getIncrDecrBy(args);
+        final int expiry = getExpiry(args);
+        return execute(context, key, false, false, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
                 long result = client.decr(key, by, 0, expiry);
+                invalidateLocal(key);
+                nodeSucceeded(key);
+                // counters are kept on their primary only
+                deleteReplicas(key);
                 return ruby.newFixnum(result);
-            } catch (OperationTimeoutException e) {
-                if (retry == exceptionRetryLimit) {
-                    throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
-                }
-                retry++;
             }
-        }
+        });
     }
 
     @JRubyMethod(name = "delete")
-    public IRubyObject delete(ThreadContext context, IRubyObject key) {
-        Ruby ruby = context.getRuntime();
-        int retry = 0;
-        while (true) {
-            try {
-                boolean result = client.delete(getFullKey(key.toString())).get();
+    public IRubyObject delete(final ThreadContext context, IRubyObject key) {
+        final Ruby ruby = context.getRuntime();
+        final String fullKey = getFullKey(key.toString());
+        invalidateLocal(fullKey);
+        return execute(context, fullKey, false, true, new Call() {
+            public IRubyObject call(long timeout) throws Exception {
+                boolean result = client.delete(fullKey).get(timeout, TimeUnit.MILLISECONDS);
+                invalidateLocal(fullKey);
+                nodeSucceeded(fullKey);
+                deleteReplicas(fullKey);
                 if (!result) {
                     throw Error.newNotFound(ruby, "not found");
                 }
                 return context.nil;
-            } catch (RaiseException e) {
-                throw e;
-            } catch (ExecutionException e) {
-                if ("net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+            }
+        });
+    }
+
+    /**
+     * Enqueues all the stores at once so that they are pipelined per node,
+     * then waits for them within one operation timeout.
+     *
+     * @return hash of key => true if stored, false if not stored in time
+     */
+    @JRubyMethod(name = "set_multi", required = 1, optional = 2)
+    public IRubyObject setMulti(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        RubyHash values = args[0].convertToHash();
+        int expiry = ttl;
+        if (args.length > 1) {
+            expiry = (int) args[1].convertToInteger().getLongValue();
+        }
+        Map<IRubyObject, java.util.concurrent.Future<Boolean>> futures = new LinkedHashMap<IRubyObject, java.util.concurrent.Future<Boolean>>();
+        try {
+            for (Map.Entry<IRubyObject, IRubyObject> entry : (Set<Map.Entry<IRubyObject, IRubyObject>>) values.directEntrySet()) {
+                String key = getFullKey(entry.getKey().toString());
+                Transcoder valueTranscoder = getTranscoder(args, 2, expiry);
+                invalidateLocal(key);
+                futures.put(entry.getKey(), store(StoreType.set, key, expiry, entry.getValue(), valueTranscoder));
+            }
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+        return joinMulti(context, futures);
+    }
+
+    /**
+     * Enqueues all the deletes at once so that they are pipelined per node,
+     * then waits for them within one operation timeout.
+     *
+     * @return hash of key => true if deleted, false if not found or not deleted in time
+     */
+    @JRubyMethod(name = "delete_multi")
+    public IRubyObject deleteMulti(ThreadContext context, IRubyObject keys) {
+        Ruby ruby = context.getRuntime();
+        Map<IRubyObject, java.util.concurrent.Future<Boolean>> futures = new LinkedHashMap<IRubyObject, java.util.concurrent.Future<Boolean>>();
+        try {
+            for (IRubyObject key : keys.convertToArray().toJavaArray()) {
+                String fullKey = getFullKey(key.toString());
+                invalidateLocal(fullKey);
+                futures.put(key, client.delete(fullKey, invalidating(fullKey)));
+                deleteReplicas(fullKey);
+            }
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+        return joinMulti(context, futures);
+    }
+
+    @JRubyMethod(name = "add_async", required = 2, optional = 3)
+    public IRubyObject addAsync(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        try {
+            return newStoreFuture(ruby, store(StoreType.add, key, getExpiry(args), args[1], getTranscoder(args, 3, getExpiry(args))));
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+    }
+
+    @JRubyMethod(name = "replace_async", required = 2, optional = 3)
+    public IRubyObject replaceAsync(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        try {
+            return newStoreFuture(ruby, store(StoreType.replace, key, getExpiry(args), args[1], getTranscoder(args, 3, getExpiry(args))));
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+    }
+
+    @JRubyMethod(name = "set_async", required = 2, optional = 3)
+    public IRubyObject setAsync(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        String key = getFullKey(args[0].toString());
+        invalidateLocal(key);
+        try {
+            return newStoreFuture(ruby, store(StoreType.set, key, getExpiry(args), args[1], getTranscoder(args, 3, getExpiry(args))));
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+    }
+
+    @JRubyMethod(name = "get_async", required = 1, optional = 1)
+    public IRubyObject getAsync(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        final IRubyObject keys = args[0];
+        try {
+            if (keys instanceof RubyArray) {
+                final List<String> fullKeys = getFullKeys(keys.convertToArray());
+                return new Future(ruby, client.asyncGetBulk(fullKeys, transcoder), operationTimeout) {
+                    protected IRubyObject convert(ThreadContext context, Object result) throws InterruptedException {
+                        Map<String, Object> results = new HashMap<String, Object>((Map<String, Object>) result);
+                        valueChunker.resolve(results, transcoder, operationTimeout);
+                        return toRubyHash(context.getRuntime(), keys.convertToArray(), fullKeys, results);
                     }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
+                };
+            }
+            final String key = getFullKey(keys.toString());
+            return new Future(ruby, client.asyncGet(key, transcoder), operationTimeout) {
+                protected IRubyObject convert(ThreadContext context, Object result) throws InterruptedException {
+                    result = valueChunker.resolve(key, result, transcoder, operationTimeout);
+                    if (result == null) {
+                        throw Error.newNotFound(context.getRuntime(), "not found");
+                    }
+                    return toRubyValue(context.getRuntime(), result);
                 }
-            } catch (RuntimeException e) {
-                if (e.getCause() != null &&
-                    "net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName())) {
-                    if (retry == exceptionRetryLimit) {
-                        throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+            };
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
+        }
+    }
+
+    @JRubyMethod(name = "delete_async")
+    public IRubyObject deleteAsync(ThreadContext context, IRubyObject key) {
+        Ruby ruby = context.getRuntime();
+        String fullKey = getFullKey(key.toString());
+        invalidateLocal(fullKey);
+        try {
+            deleteReplicas(fullKey);
+            return new Future(ruby, client.delete(fullKey, invalidating(fullKey)), operationTimeout) {
+                protected IRubyObject convert(ThreadContext context, Object result) {
+                    if (!(Boolean) result) {
+                        throw Error.newNotFound(context.getRuntime(), "not found");
                     }
-                    retry++;
-                } else {
-                    throw ruby.newRuntimeError(e.getLocalizedMessage());
+                    return context.nil;
                 }
-            } catch (InterruptedException e) {
-                throw ruby.newThreadError(e.getLocalizedMessage());
-            }
+            };
+        } catch (RaiseException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw ruby.newRuntimeError(e.getLocalizedMessage());
         }
     }
 
     @JRubyMethod
     public IRubyObject flush(ThreadContext context) {
         Ruby ruby = context.getRuntime();
+        if (localCache != null) {
+            localCache.clear();
+        }
         try {
             client.flush().get();
             return context.nil;
@@ -369,8 +637,57 @@ public class Memcached extends RubyObject {
         return results;
     }
 
+    /**
+     * @return hash of the local cache counters, or nil if the local cache is disabled
+     */
+    @JRubyMethod(name = "local_cache_stats")
+    public IRubyObject localCacheStats(ThreadContext context) {
+        Ruby ruby = context.getRuntime();
+        if (localCache == null) {
+            return context.nil;
+        }
+        RubyHash results = RubyHash.newHash(ruby);
+        results.op_aset(context, ruby.newString("hits"), ruby.newFixnum(localCache.getHits()));
+        results.op_aset(context, ruby.newString("misses"), ruby.newFixnum(localCache.getMisses()));
+        results.op_aset(context, ruby.newString("evictions"), ruby.newFixnum(localCache.getEvictions()));
+        results.op_aset(context, ruby.newString("size"), ruby.newFixnum(localCache.size()));
+        return results;
+    }
+
+    /**
+     * Overrides the retry options of the client for the calls made in the
+     * block by the current thread.
+     */
+    @JRubyMethod(name = "with_retry", required = 1)
+    public IRubyObject withRetry(ThreadContext context, IRubyObject options, Block block) {
+        Map<String, String> opts = new HashMap<String, String>();
+        RubyHash arguments = options.convertToHash();
+        for (Object key : arguments.keySet()) {
+            if (arguments.get(key) != null) {
+                opts.put(key.toString(), arguments.get(key).toString());
+            }
+        }
+        RetryPolicy previous = callRetryPolicy.get();
+        callRetryPolicy.set(getRetryPolicy().override(opts));
+        try {
+            return block.call(context);
+        } finally {
+            if (previous == null) {
+                callRetryPolicy.remove();
+            } else {
+                callRetryPolicy.set(previous);
+            }
+        }
+    }
+
     @JRubyMethod(name = {"quit", "shutdown"})
     public IRubyObject shutdown(ThreadContext context) {
+        if (getBatcher != null) {
+            getBatcher.shutdown();
+        }
+        if (parallelDecoder != null) {
+            parallelDecoder.shutdown();
+        }
         client.shutdown();
 
         return context.nil;
@@ -380,9 +697,41 @@ public class Memcached extends RubyObject {
         return ttl;
     }
 
+    protected boolean isRawByDefault() {
+        return raw;
+    }
+
     protected IRubyObject init(ThreadContext context, List<String> servers, Map<String, String> opts) {
         Ruby ruby = context.getRuntime();
-        List<InetSocketAddress> addresses = AddrUtil.getAddresses(servers);
+        // servers may be weighted like libmemcached, host:port:weight
+        List<String> serverAddresses = new ArrayList<String>();
+        List<Integer> serverWeights = new ArrayList<Integer>();
+        for (String server : servers) {
+            String[] parts = server.split(":");
+            if (parts.length == 3) {
+                int weight;
+                try {
+                    weight = Integer.parseInt(parts[2]);
+                } catch (NumberFormatException e) {
+                    throw ruby.newArgumentError("invalid weight of server " + server);
+                }
+                if (weight <= 0) {
+                    throw ruby.newArgumentError("weight of server " + server + " must be positive");
+                }
+                serverAddresses.add(parts[0] + ":" + parts[1]);
+                serverWeights.add(weight);
+            } else {
+                serverAddresses.add(server);
+                serverWeights.add(null);
+            }
+        }
+        List<InetSocketAddress> addresses = AddrUtil.getAddresses(serverAddresses);
+        Map<SocketAddress, Integer> weights = new HashMap<SocketAddress, Integer>();
+        for (int i = 0; i < addresses.size(); i++) {
+            if (serverWeights.get(i) != null) {
+                weights.put(addresses.get(i), serverWeights.get(i));
+            }
+        }
         try {
             ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder();
 
@@ -391,6 +740,30 @@ public class Memcached extends RubyObject {
             boolean binaryValue = false;
             boolean shouldOptimize = false;
             String transcoderValue = null;
+            int compressionMinSize = -1;
+            String dictionaryPath = null;
+            int localCacheSize = 0;
+            int localCacheTTL = 1;
+            int getBatchWindow = 0;
+            int getBatchSize = 100;
+            boolean autoEjectHosts = false;
+            int serverFailureLimit = 2;
+            int retryTimeout = 30;
+            int replicas = 0;
+            int hedgeDelay = 10;
+            long retryDeadline = 0;
+            long retryBackoff = 10;
+            long retryBackoffMax = 100;
+            int retryBudget = 20;
+            boolean circuitBreakerValue = false;
+            double circuitFailureRate = 0.5;
+            int circuitMinRequests = 20;
+            long circuitWindow = 10000;
+            long circuitOpenTime = 5000;
+            int parallelDecodeThreads = 0;
+            int valueChunkSize = 0;
+            int parallelDecodeMinKeys = 32;
+            int parallelDecodeMinBytes = 64 * 1024;
             if (!opts.isEmpty()) {
                 if (opts.containsKey("distribution")) {
                     distributionValue = opts.get("distribution");
@@ -422,6 +795,87 @@ public class Memcached extends RubyObject {
                 if (opts.containsKey("transcoder")) {
                     transcoderValue = opts.get("transcoder");
                 }
+                if (opts.containsKey("compression_min_size")) {
+                    compressionMinSize = Integer.parseInt(opts.get("compression_min_size"));
+                }
+                if (opts.containsKey("raw")) {
+                    raw = Boolean.parseBoolean(opts.get("raw"));
+                }
+                if (opts.containsKey("dictionary_path")) {
+                    dictionaryPath = opts.get("dictionary_path");
+                }
+                if (opts.containsKey("local_cache_size")) {
+                    localCacheSize = Integer.parseInt(opts.get("local_cache_size"));
+                }
+                if (opts.containsKey("local_cache_ttl")) {
+                    localCacheTTL = Integer.parseInt(opts.get("local_cache_ttl"));
+                }
+                if (opts.containsKey("get_batch_window")) {
+                    getBatchWindow = Integer.parseInt(opts.get("get_batch_window"));
+                }
+                if (opts.containsKey("get_batch_size")) {
+                    getBatchSize = Integer.parseInt(opts.get("get_batch_size"));
+                }
+                if (opts.containsKey("auto_eject_hosts")) {
+                    autoEjectHosts = Boolean.parseBoolean(opts.get("auto_eject_hosts"));
+                }
+                if (opts.containsKey("server_failure_limit")) {
+                    serverFailureLimit = Integer.parseInt(opts.get("server_failure_limit"));
+                }
+                if (opts.containsKey("retry_timeout")) {
+                    retryTimeout = Integer.parseInt(opts.get("retry_timeout"));
+                }
+                if (opts.containsKey("replicas")) {
+                    replicas = Integer.parseInt(opts.get("replicas"));
+                }
+                if (opts.containsKey("hedge_delay")) {
+                    hedgeDelay = Integer.parseInt(opts.get("hedge_delay"));
+                }
+                if (opts.containsKey("retry_deadline")) {
+                    retryDeadline = Long.parseLong(opts.get("retry_deadline"));
+                }
+                if (opts.containsKey("retry_backoff")) {
+                    retryBackoff = Long.parseLong(opts.get("retry_backoff"));
+                }
+                if (opts.containsKey("retry_backoff_max")) {
+                    retryBackoffMax = Long.parseLong(opts.get("retry_backoff_max"));
+                }
+                if (opts.containsKey("retry_budget")) {
+                    retryBudget = Integer.parseInt(opts.get("retry_budget"));
+                }
+                if (opts.containsKey("circuit_breaker")) {
+                    circuitBreakerValue = Boolean.parseBoolean(opts.get("circuit_breaker"));
+                }
+                if (opts.containsKey("circuit_failure_rate")) {
+                    circuitFailureRate = Double.parseDouble(opts.get("circuit_failure_rate"));
+                }
+                if (opts.containsKey("circuit_min_requests")) {
+                    circuitMinRequests = Integer.parseInt(opts.get("circuit_min_requests"));
+                }
+                if (opts.containsKey("circuit_window")) {
+                    circuitWindow = Long.parseLong(opts.get("circuit_window"));
+                }
+                if (opts.containsKey("circuit_open_time")) {
+                    circuitOpenTime = Long.parseLong(opts.get("circuit_open_time"));
+                }
+                if (opts.containsKey("multi_get_chunk_size")) {
+                    multiGetChunkSize = Integer.parseInt(opts.get("multi_get_chunk_size"));
+                }
+                if (opts.containsKey("partial_multi_get")) {
+                    partialMultiGet = Boolean.parseBoolean(opts.get("partial_multi_get"));
+                }
+                if (opts.containsKey("value_chunk_size")) {
+                    valueChunkSize = Integer.parseInt(opts.get("value_chunk_size"));
+                }
+                if (opts.containsKey("parallel_decode_threads")) {
+                    parallelDecodeThreads = Integer.parseInt(opts.get("parallel_decode_threads"));
+                }
+                if (opts.containsKey("parallel_decode_min_keys")) {
+                    parallelDecodeMinKeys = Integer.parseInt(opts.get("parallel_decode_min_keys"));
+                }
+                if (opts.containsKey("parallel_decode_min_bytes")) {
+                    parallelDecodeMinBytes = Integer.parseInt(opts.get("parallel_decode_min_bytes"));
+                }
             }
 
             if ("array_mod".equals(distributionValue)) {
@@ -431,6 +885,16 @@ public class Memcached extends RubyObject {
             } else {
                 throw Error.newNotSupport(ruby, "distribution not support");
             }
+            if (replicas > 0 && "array_mod".equals(distributionValue)) {
+                throw Error.newNotSupport(ruby, "replicas need ketama distribution");
+            }
+            if (!weights.isEmpty() && "array_mod".equals(distributionValue)) {
+                throw Error.newNotSupport(ruby, "weights need ketama distribution");
+            }
+            if (replicas > 0 && getBatchWindow > 0) {
+                // batched gets would skip the hedging of the replicas
+                throw Error.newNotSupport(ruby, "replicas can't batch gets");
+            }
             if ("native".equals(hashValue)) {
                 builder.setHashAlg(DefaultHashAlgorithm.NATIVE_HASH);
             } else if ("crc".equals(hashValue)) {
@@ -461,13 +925,62 @@ public class Memcached extends RubyObject {
             }
             builder.setDaemon(true);
             if ("marshal_zlib".equals(transcoderValue)) {
-                transcoder = new MarshalZlibTranscoder(ruby);
+                if (compressionMinSize == -1) {
+                    compressionMinSize = MarshalZlibTranscoder.DEFAULT_COMPRESSION_MIN_SIZE;
+                }
+                transcoder = new MarshalZlibTranscoder(ruby, MarshalZlibTranscoder.COMPRESS_FLAG, compressionMinSize);
+            } else if ("compact".equals(transcoderValue)) {
+                transcoder = new CompactTranscoder(ruby);
+            } else if ("marshal_lz".equals(transcoderValue)) {
+                if (compressionMinSize == -1) {
+                    compressionMinSize = MarshalZlibTranscoder.DEFAULT_COMPRESSION_MIN_SIZE;
+                }
+                transcoder = new MarshalLzTranscoder(ruby, compressionMinSize);
+            } else if ("marshal_dictionary".equals(transcoderValue)) {
+                if (dictionaryPath == null) {
+                    throw Error.newNotSupport(ruby, "marshal_dictionary needs dictionary_path");
+                }
+                if (compressionMinSize == -1) {
+                    compressionMinSize = MarshalDictionaryTranscoder.DEFAULT_COMPRESSION_MIN_SIZE;
+                }
+                Map<Integer, byte[]> dictionaries = MarshalDictionaryTranscoder.loadDictionaries(dictionaryPath);
+                if (dictionaries.isEmpty()) {
+                    throw Error.newNotSupport(ruby, "no dictionary in " + dictionaryPath);
+                }
+                transcoder = new MarshalDictionaryTranscoder(ruby, dictionaries, compressionMinSize);
             } else {
                 transcoder = new MarshalTranscoder(ruby);
             }
             builder.setTranscoder(transcoder);
+            rawTranscoder = new RawTranscoder(transcoder);
 
-            client = new MemcachedClient(builder.build(), addresses);
+            if (localCacheSize > 0) {
+                localCache = new LocalCache(localCacheSize, localCacheTTL);
+            }
+
+            ConnectionFactory connectionFactory = builder.build();
+            operationTimeout = connectionFactory.getOperationTimeout();
+            client = new ExtendedMemcachedClient(connectionFactory, addresses);
+            retryPolicy = new RetryPolicy(client.getLocator(), exceptionRetryLimit, retryDeadline, retryBackoff, retryBackoffMax, retryBudget);
+            if (circuitBreakerValue) {
+                circuitBreaker = new CircuitBreaker(client.getLocator(), circuitFailureRate, circuitMinRequests, circuitWindow, circuitOpenTime);
+            }
+            if (!weights.isEmpty()) {
+                ((KetamaNodeLocator) client.getLocator()).setNodeWeights(weights);
+            }
+            if (autoEjectHosts && client.getLocator() instanceof KetamaNodeLocator) {
+                autoEjector = new AutoEjector(client, serverFailureLimit, retryTimeout);
+            }
+            if (replicas > 0) {
+                replicator = new Replicator(client, transcoder, replicas, hedgeDelay);
+            }
+            if (getBatchWindow > 0) {
+                getBatcher = new GetBatcher(client, transcoder, getBatchWindow, getBatchSize);
+            }
+            valueChunker = new ValueChunker(ruby, client, prefixKey, valueChunkSize, multiGetChunkSize);
+            if (parallelDecodeThreads > 0) {
+                parallelDecoder = new ParallelDecoder(transcoder, parallelDecodeThreads, parallelDecodeMinKeys, parallelDecodeMinBytes);
+            }
 
             return context.nil;
         } catch (IOException e) {
@@ -475,6 +988,266 @@ public class Memcached extends RubyObject {
         }
     }
 
+    /**
+     * Runs a call, and retries it if it times out as long as the retry policy
+     * allows it, only idempotent calls are retried.
+     *
+     * @param key the key of the call, or null if it has many keys
+     * @param read true if the call only reads the key
+     */
+    private IRubyObject execute(ThreadContext context, String key, boolean read, boolean idempotent, Call call) {
+        Ruby ruby = context.getRuntime();
+        RetryPolicy policy = getRetryPolicy();
+        long deadline = policy.getDeadline() > 0 ? System.currentTimeMillis() + policy.getDeadline() : Long.MAX_VALUE;
+        int retry = 0;
+        while (true) {
+            if (key != null && circuitBreaker != null && !circuitBreaker.allow(key)) {
+                throw newCircuitOpenError(ruby, read);
+            }
+            try {
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 1);
+                IRubyObject result = call.call(Math.min(operationTimeout, remaining));
+                circuitSucceeded(key);
+                return result;
+            } catch (RaiseException e) {
+                circuitSucceeded(key);
+                throw e;
+            } catch (JumpException e) {
+                // break out of a block yielded by the call
+                throw e;
+            } catch (InterruptedException e) {
+                circuitFailed(key);
+                throw ruby.newThreadError(e.getLocalizedMessage());
+            } catch (Exception e) {
+                circuitFailed(key);
+                if (!isTimeout(e)) {
+                    throw ruby.newRuntimeError(e.getLocalizedMessage());
+                }
+                if (key != null) {
+                    nodeFailed(key);
+                }
+                long delay = -1;
+                if (idempotent) {
+                    delay = policy.getRetryDelay(key, retry, deadline - System.currentTimeMillis());
+                }
+                if (delay < 0) {
+                    throw Error.newATimeoutOccurred(ruby, e.getLocalizedMessage());
+                }
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        throw ruby.newThreadError(ie.getLocalizedMessage());
+                    }
+                }
+                retry++;
+            }
+        }
+    }
+
+    /**
+     * Raised instead of calling memcached when the circuit of the node of
+     * the key is open.
+     *
+     * @param read true if the call only reads the key
+     */
+    protected RaiseException newCircuitOpenError(Ruby ruby, boolean read) {
+        return Error.newATimeoutOccurred(ruby, "circuit open");
+    }
+
+    private void circuitSucceeded(String key) {
+        if (key != null && circuitBreaker != null) {
+            circuitBreaker.success(key);
+        }
+    }
+
+    private void circuitFailed(String key) {
+        if (key != null && circuitBreaker != null) {
+            circuitBreaker.failure(key);
+        }
+    }
+
+    private boolean isTimeout(Exception e) {
+        if (e instanceof OperationTimeoutException || e instanceof TimeoutException) {
+            return true;
+        }
+        return e.getCause() != null &&
+            "net.spy.memcached.internal.CheckedOperationTimeoutException".equals(e.getCause().getClass().getName());
+    }
+
+    private RetryPolicy getRetryPolicy() {
+        RetryPolicy policy = callRetryPolicy.get();
+        return policy != null ? policy : retryPolicy;
+    }
+
+    private void nodeSucceeded(String key) {
+        if (autoEjector != null) {
+            autoEjector.success(key);
+        }
+    }
+
+    private void nodeFailed(String key) {
+        if (autoEjector != null) {
+            autoEjector.failure(key);
+        }
+    }
+
+    /**
+     * Records the outcome of the gets of a multi get in the circuits of their
+     * nodes, the nodes still pending failed if it timed out.
+     */
+    private void multiGetCompleted(MultiGet multiGet, boolean timedOut) {
+        if (circuitBreaker == null) {
+            return;
+        }
+        for (MemcachedNode node : multiGet.getSucceededNodes()) {
+            circuitBreaker.success(node);
+        }
+        for (MemcachedNode node : multiGet.getFailedNodes()) {
+            circuitBreaker.failure(node);
+        }
+        if (timedOut) {
+            for (MemcachedNode node : multiGet.getPendingNodes()) {
+                circuitBreaker.failure(node);
+            }
+        }
+    }
+
+    /**
+     * Keeps the servers of the gets of a multi get which timed out, so that
+     * the values received from the others are returned.
+     *
+     * @throws TimeoutException unless partial_multi_get is set
+     */
+    private void multiGetTimedOut(MultiGet multiGet, TimeoutException e) throws TimeoutException {
+        if (!partialMultiGet) {
+            throw e;
+        }
+        timedOutServers.set(multiGet.getPendingNodes());
+    }
+
+    private void replicate(String key, int expiry, Object value, Transcoder valueTranscoder) {
+        if (replicator != null) {
+            replicator.set(key, expiry, value, valueTranscoder);
+        }
+    }
+
+    private void replicate(String key, int expiry, CachedData data) {
+        if (replicator != null) {
+            replicator.set(key, expiry, data);
+        }
+    }
+
+    /**
+     * Enqueues the store of the value, which is copied to the replicas once
+     * it's stored on its primary, without waiting for it. The local value of
+     * the key is invalidated again then, like invalidating does.
+     */
+    private java.util.concurrent.Future<Boolean> store(StoreType type, final String key, final int expiry, Object value, Transcoder valueTranscoder) {
+        final CachedData data = valueTranscoder.encode(value);
+        Runnable stored = null;
+        if (replicator != null || localCache != null) {
+            stored = new Runnable() {
+                public void run() {
+                    invalidateLocal(key);
+                    replicate(key, expiry, data);
+                }
+            };
+        }
+        return client.store(type, key, expiry, data, stored);
+    }
+
+    private void deleteReplicas(String key) {
+        if (replicator != null) {
+            replicator.delete(key);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
+    /**
+     * @return a callback invalidating the local value of the key again once
+     *         it's written, as a get racing with the write may have cached
+     *         the value it replaced, or null without a local cache
+     */
+    private Runnable invalidating(final String key) {
+        if (localCache == null) {
+            return null;
+        }
+        return new Runnable() {
+            public void run() {
+                localCache.invalidate(key);
+            }
+        };
+    }
+
+    private Future newStoreFuture(Ruby ruby, java.util.concurrent.Future<Boolean> future) {
+        return new Future(ruby, future, operationTimeout) {
+            protected IRubyObject convert(ThreadContext context, Object result) {
+                if (!(Boolean) result) {
+                    throw Error.newNotStored(context.getRuntime(), "not stored");
+                }
+                return context.nil;
+            }
+        };
+    }
+
+    private RubyHash joinMulti(ThreadContext context, Map<IRubyObject, java.util.concurrent.Future<Boolean>> futures) {
+        Ruby ruby = context.getRuntime();
+        RubyHash results = RubyHash.newHash(ruby);
+        long deadline = System.currentTimeMillis() + operationTimeout;
+        for (Map.Entry<IRubyObject, java.util.concurrent.Future<Boolean>> entry : futures.entrySet()) {
+            boolean result;
+            try {
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+                result = entry.getValue().get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                result = false;
+            } catch (ExecutionException e) {
+                result = false;
+            } catch (InterruptedException e) {
+                throw ruby.newThreadError(e.getLocalizedMessage());
+            }
+            results.op_aset(context, entry.getKey(), ruby.newBoolean(result));
+        }
+        return results;
+    }
+
+    private IRubyObject toRubyValue(Ruby ruby, Object ret) {
+        if (ret instanceof IRubyObject) {
+            return (IRubyObject) ret;
+        }
+        return ruby.newFixnum((Long) ret);
+    }
+
+    /**
+     * @param fullKeys the full keys of keys, in the same order
+     */
+    private RubyHash toRubyHash(Ruby ruby, List<String> keys, List<String> fullKeys, Map<String, Object> bulkResults) {
+        RubyHash results = RubyHash.newHash(ruby);
+        for (int i = 0; i < keys.size(); i++) {
+            Object value = bulkResults.get(fullKeys.get(i));
+            if (value != null) {
+                results.put(keys.get(i), value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the raw transcoder if the encode argument at index is false,
+     *         or if it's missing and the client is raw by default, which
+     *         stores large values in chunks expiring like them
+     */
+    private Transcoder getTranscoder(IRubyObject[] args, int index, int expiry) {
+        boolean encode = args.length > index ? args[index].isTrue() : !raw;
+        return valueChunker.storing(expiry, encode ? transcoder : rawTranscoder, operationTimeout);
+    }
+
     private int getExpiry(IRubyObject[] args) {
         if (args.length > 2) {
             return (int) args[2].convertToInteger().getLongValue();
@@ -500,4 +1273,22 @@ public class Memcached extends RubyObject {
     private String getFullKey(String key) {
         return prefixKey + key;
     }
+
+    private static String toAddress(SocketAddress address) {
+        String addressStr = address.toString();
+        if (addressStr.indexOf("/") == 0) {
+            addressStr = addressStr.replace("/", "");
+        }
+        return addressStr;
+    }
+
+    /**
+     * A call which may be retried by execute.
+     */
+    private abstract class Call {
+        /**
+         * @param timeout milliseconds the call may wait for memcached
+         */
+        public abstract IRubyObject call(long timeout) throws Exception;
+    }
 }
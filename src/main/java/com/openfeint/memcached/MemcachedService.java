@@ -24,6 +24,9 @@ public class MemcachedService implements BasicLibraryService {
         });
         rails.defineAnnotatedMethods(Rails.class);
 
+        RubyClass future = memcached.defineClassUnder("Future", ruby.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        future.defineAnnotatedMethods(Future.class);
+
         RubyClass runtimeError = ruby.getRuntimeError();
         RubyClass memcachedError = memcached.defineClassUnder("Error", runtimeError, runtimeError.getAllocator());
         memcached.defineClassUnder("NotFound", memcachedError, memcachedError.getAllocator());
@@ -0,0 +1,197 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ExtendedMemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * MultiGet gets keys with one get per node, or per chunk of keys of a
+ * node, and hands out the values undecoded as they are received, so that
+ * a slow node only delays its own keys.
+ *
+ * The gets of a node which didn't complete in time are known, so that the
+ * values received from the other nodes can be kept on a timeout.
+ *
+ */
+public class MultiGet {
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+
+    private final Map<MemcachedNode, List<Operation>> ops;
+
+    // number of gets not completed yet by node, only read by the caller
+    private final Map<MemcachedNode, Integer> pending = new HashMap<MemcachedNode, Integer>();
+
+    private int pendingOps;
+
+    // nodes of which a get failed or was cancelled, only read by the caller
+    private final Set<MemcachedNode> failed = new HashSet<MemcachedNode>();
+
+    private boolean cancelled;
+
+    // values collected by getAll
+    private final Map<String, CachedData> values = new HashMap<String, CachedData>();
+
+    /**
+     * @param chunkSize max number of keys of a get, or 0 for one get per node
+     * @param maxSize max size of a value, as the transcoder accepts
+     */
+    public MultiGet(ExtendedMemcachedClient client, Collection<String> keys, int chunkSize, final int maxSize) {
+        ops = client.asyncGetBulk(keys, chunkSize, new ExtendedMemcachedClient.BulkGetCallback() {
+            public void gotData(String key, int flags, byte[] data) {
+                received.offer(new Received(key, new CachedData(flags, data, maxSize), null, true));
+            }
+
+            public void complete(MemcachedNode node, boolean success) {
+                received.offer(new Received(null, null, node, success));
+            }
+        });
+        for (Map.Entry<MemcachedNode, List<Operation>> entry : ops.entrySet()) {
+            pending.put(entry.getKey(), entry.getValue().size());
+            pendingOps += entry.getValue().size();
+        }
+    }
+
+    /**
+     * @param timeout milliseconds to wait for the next value
+     * @return the next value and its key, or null once all gets completed
+     * @throws TimeoutException if no value is received in time, the gets
+     *                          are then still pending
+     */
+    public Map.Entry<String, CachedData> next(long timeout) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pendingOps > 0) {
+            Received r = received.poll(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            if (r == null) {
+                throw new TimeoutException("Timed out waiting for " + getPendingNodes().size() + " nodes");
+            }
+            if (r.node == null) {
+                return r;
+            }
+            pending.put(r.node, pending.get(r.node) - 1);
+            pendingOps--;
+            if (!r.success) {
+                failed.add(r.node);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the values received until all gets completed.
+     *
+     * @throws TimeoutException if the gets don't complete in time, the
+     *                          values received are then getReceived
+     */
+    public Map<String, CachedData> getAll(long timeout) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeout;
+        Map.Entry<String, CachedData> value;
+        while ((value = next(Math.max(deadline - System.currentTimeMillis(), 0))) != null) {
+            values.put(value.getKey(), value.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * @return the values collected by getAll so far
+     */
+    public Map<String, CachedData> getReceived() {
+        return values;
+    }
+
+    /**
+     * Cancels the gets which didn't complete, if any.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (MemcachedNode node : getPendingNodes()) {
+            for (Operation op : ops.get(node)) {
+                if (op.getState() != OperationState.COMPLETE) {
+                    op.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the nodes of the gets which didn't complete
+     */
+    public List<MemcachedNode> getPendingNodes() {
+        List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+        for (Map.Entry<MemcachedNode, Integer> entry : pending.entrySet()) {
+            if (entry.getValue() > 0) {
+                nodes.add(entry.getKey());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the nodes of which all the gets completed successfully
+     */
+    public List<MemcachedNode> getSucceededNodes() {
+        List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+        for (Map.Entry<MemcachedNode, Integer> entry : pending.entrySet()) {
+            if (entry.getValue() == 0 && !failed.contains(entry.getKey())) {
+                nodes.add(entry.getKey());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the nodes of which a get failed or was cancelled
+     */
+    public Set<MemcachedNode> getFailedNodes() {
+        return failed;
+    }
+
+    /**
+     * A value, or the completion of a get of node.
+     */
+    private static class Received implements Map.Entry<String, CachedData> {
+        private final String key;
+
+        private final CachedData data;
+
+        private final MemcachedNode node;
+
+        private final boolean success;
+
+        private Received(String key, CachedData data, MemcachedNode node, boolean success) {
+            this.key = key;
+            this.data = data;
+            this.node = node;
+            this.success = success;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public CachedData getValue() {
+            return data;
+        }
+
+        public CachedData setValue(CachedData value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
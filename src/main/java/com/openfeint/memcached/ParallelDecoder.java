@@ -0,0 +1,166 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * ParallelDecoder decodes the values of a large multi get on a pool of
+ * daemon threads instead of one by one on the caller thread.
+ *
+ * Values are split in chunks which the caller and the pool threads claim
+ * in turn, so the caller never waits for a busy pool: it decodes the
+ * chunks nobody claimed yet, then waits for the ones being decoded.
+ *
+ */
+public class ParallelDecoder {
+    // chunks per thread, so that a slow value doesn't hold back the others
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final Transcoder<Object> transcoder;
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    private final int minKeys;
+
+    private final int minBytes;
+
+    /**
+     * @param threads number of pool threads
+     * @param minKeys min number of values decoded in parallel
+     * @param minBytes min number of bytes of the values decoded in parallel
+     */
+    public ParallelDecoder(Transcoder<Object> transcoder, int threads, int minKeys, int minBytes) {
+        this.transcoder = transcoder;
+        this.threads = threads;
+        this.minKeys = minKeys;
+        this.minBytes = minBytes;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Memcached ParallelDecoder " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Decodes the values like the transcoder, in parallel if they are at
+     * least minKeys values of minBytes bytes.
+     */
+    public Map<String, Object> decode(Map<String, CachedData> values) throws InterruptedException {
+        final List<String> keys = new ArrayList<String>(values.keySet());
+        final List<CachedData> data = new ArrayList<CachedData>(values.values());
+        final Object[] results = new Object[keys.size()];
+        int bytes = 0;
+        for (CachedData d : data) {
+            bytes += d.getData().length;
+        }
+        if (keys.size() < minKeys || bytes < minBytes) {
+            decode(data, results, 0, data.size());
+        } else {
+            final int chunkSize = Math.max(1, data.size() / ((threads + 1) * CHUNKS_PER_THREAD));
+            final int chunks = (data.size() + chunkSize - 1) / chunkSize;
+            final Chunks claims = new Chunks(chunks);
+            Runnable worker = new Runnable() {
+                public void run() {
+                    int chunk;
+                    while ((chunk = claims.claim()) >= 0) {
+                        try {
+                            decode(data, results, chunk * chunkSize, Math.min((chunk + 1) * chunkSize, data.size()));
+                        } catch (RuntimeException e) {
+                            claims.fail(e);
+                        } finally {
+                            claims.done();
+                        }
+                    }
+                }
+            };
+            for (int i = 0; i < Math.min(threads, chunks - 1); i++) {
+                executor.execute(worker);
+            }
+            worker.run();
+            claims.await();
+        }
+        Map<String, Object> decoded = new HashMap<String, Object>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                decoded.put(keys.get(i), results[i]);
+            }
+        }
+        return decoded;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void decode(List<CachedData> data, Object[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = transcoder.decode(data.get(i));
+        }
+    }
+
+    private static class Chunks {
+        private final int count;
+
+        private int claimed;
+
+        private int done;
+
+        private RuntimeException error;
+
+        private Chunks(int count) {
+            this.count = count;
+        }
+
+        /**
+         * @return the next chunk to decode, or -1 if all are claimed
+         */
+        private synchronized int claim() {
+            if (claimed == count || error != null) {
+                return -1;
+            }
+            return claimed++;
+        }
+
+        private synchronized void fail(RuntimeException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        private synchronized void done() {
+            done++;
+            if (done == claimed) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the claimed chunks, all chunks are claimed once the
+         * caller's worker returns.
+         */
+        private synchronized void await() throws InterruptedException {
+            while (done < claimed) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
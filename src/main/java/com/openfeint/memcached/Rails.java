@@ -1,5 +1,6 @@
 package com.openfeint.memcached;
 
+import com.openfeint.memcached.error.Error;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBoolean;
@@ -18,11 +19,18 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @JRubyClass(name = "Memcached::Rails", parent = "Memcached")
 public class Rails extends Memcached {
     private boolean stringReturnTypes;
 
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
     public Rails(final Ruby ruby, RubyClass rubyClass) {
         super(ruby, rubyClass);
 
@@ -81,8 +89,10 @@ public class Rails extends Memcached {
         IRubyObject key = args[0];
         RubyBoolean notRaw = notRaw(context, args, 1);
         try {
-            return super.get(context, new IRubyObject[] { key, notRaw });
+            IRubyObject value = getValue(context, new IRubyObject[] { key, notRaw }, false);
+            return value != null ? unwrap(context, value) : context.nil;
         } catch (RaiseException e) {
+            // reads of a node with an open circuit
             if ("NotFound".equals(e.getException().getMetaClass().getBaseName())) {
                 return context.nil;
             }
@@ -94,15 +104,15 @@ public class Rails extends Memcached {
     public IRubyObject read(ThreadContext context, IRubyObject[] args) {
         IRubyObject key = args[0];
         RubyBoolean notRaw = notRaw(context, args, 1);
-        return get(context, new IRubyObject[] { key, notRaw });
+        // get takes a raw flag
+        return get(context, new IRubyObject[] { key, notRaw.op_not(context) });
     }
 
     @JRubyMethod(name = "exist?", required = 1, optional = 1)
     public IRubyObject exist_p(ThreadContext context, IRubyObject[] args) {
         Ruby ruby = context.getRuntime();
         try {
-            super.get(context, args);
-            return ruby.getTrue();
+            return ruby.newBoolean(getValue(context, args, false) != null);
         } catch (RaiseException e) {
             return ruby.getFalse();
         }
@@ -110,9 +120,15 @@ public class Rails extends Memcached {
 
     @JRubyMethod(name = "get_multi", required = 1, optional = 1)
     public IRubyObject getMulti(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
         IRubyObject keys = args[0];
         RubyBoolean notRaw = notRaw(context, args, 1);
-        return super.get(context, new IRubyObject[] { keys, notRaw });
+        RubyHash values = (RubyHash) super.get(context, new IRubyObject[] { keys, notRaw });
+        RubyHash results = RubyHash.newHash(ruby);
+        for (Map.Entry<IRubyObject, IRubyObject> entry : (Set<Map.Entry<IRubyObject, IRubyObject>>) values.directEntrySet()) {
+            results.op_aset(context, entry.getKey(), unwrap(context, entry.getValue()));
+        }
+        return results;
     }
 
     @JRubyMethod(name = { "set", "[]=" }, required = 2, optional = 2)
@@ -136,7 +152,8 @@ public class Rails extends Memcached {
         IRubyObject value = args[1];
         RubyFixnum ttl = getTTL(context, args, 2);
         RubyBoolean notRaw = notRaw(context, args, 2);
-        return set(context, new IRubyObject[] { key, value, ttl, notRaw });
+        // set takes a raw flag
+        return set(context, new IRubyObject[] { key, value, ttl, notRaw.op_not(context) });
     }
 
     @JRubyMethod(name = "fetch", required = 1, optional = 1)
@@ -149,12 +166,52 @@ public class Rails extends Memcached {
         } else {
             options = new RubyHash(ruby);
         }
-        IRubyObject value = read(context, args);
-        if (value.isNil()) {
-            value = block.call(context);
-            write(context, new IRubyObject[] { key, value, options });
+        long raceConditionTTL = getRaceConditionTTL(context, options);
+        if (raceConditionTTL <= 0) {
+            IRubyObject value = read(context, args);
+            if (value.isNil()) {
+                value = compute(context, key, options, 0, block);
+            }
+            return value;
+        }
+
+        // values are written with a soft expiry, once it passes, the first caller
+        // adding the lock key recomputes the value, others read the stale one.
+        IRubyObject value = readEntry(context, key);
+        if (isEntry(context, value)) {
+            IRubyObject entryValue = value.callMethod(context, "value");
+            if (!value.callMethod(context, "expired?").isTrue()) {
+                return entryValue;
+            }
+            String lockKey = key.toString() + "/race_condition_lock";
+            if (!lock(context, lockKey, raceConditionTTL)) {
+                return entryValue;
+            }
+            try {
+                return compute(context, key, options, raceConditionTTL, block);
+            } finally {
+                delete(context, new IRubyObject[] { ruby.newString(lockKey) });
+            }
+        }
+        if (!value.isNil()) {
+            return value;
+        }
+        return compute(context, key, options, raceConditionTTL, block);
+    }
+
+    /**
+     * Adds the lock key, whatever add returns with string_return_types.
+     *
+     * @return true if the lock was taken, false if another caller holds it
+     */
+    private boolean lock(ThreadContext context, String lockKey, long ttl) {
+        Ruby ruby = context.getRuntime();
+        try {
+            super.add(context, new IRubyObject[] { ruby.newString(lockKey), ruby.getTrue(), ruby.newFixnum(ttl) });
+            return true;
+        } catch (RaiseException e) {
+            return false;
         }
-        return value;
     }
 
     @JRubyMethod(name = "add", required = 2, optional = 2)
@@ -207,6 +264,162 @@ public class Rails extends Memcached {
         }
     }
 
+    /**
+     * Reads of a node with an open circuit are misses.
+     */
+    @Override
+    protected RaiseException newCircuitOpenError(Ruby ruby, boolean read) {
+        if (read) {
+            return Error.newNotFound(ruby, "circuit open");
+        }
+        return super.newCircuitOpenError(ruby, read);
+    }
+
+    /**
+     * Computes the value of a missing or expired key and writes it,
+     * only one thread computes a key, the others wait for its value, or
+     * raise its exception. A nested fetch of the key by the computing thread
+     * computes it again instead of waiting for itself.
+     */
+    private IRubyObject compute(ThreadContext context, IRubyObject key, RubyHash options, long raceConditionTTL, Block block) {
+        String name = key.toString();
+        while (true) {
+            Flight flight = new Flight();
+            Flight inFlight = flights.putIfAbsent(name, flight);
+            if (inFlight == null) {
+                try {
+                    IRubyObject value = computeAndWrite(context, key, options, raceConditionTTL, block);
+                    flight.complete(value);
+                    return value;
+                } catch (RaiseException e) {
+                    flight.fail(e);
+                    throw e;
+                } finally {
+                    flights.remove(name, flight);
+                    flight.release();
+                }
+            }
+            if (inFlight.owner == Thread.currentThread()) {
+                return computeAndWrite(context, key, options, raceConditionTTL, block);
+            }
+            if (inFlight.await(context)) {
+                return inFlight.value;
+            }
+            // the computing thread left without a value, like on a break, take over
+        }
+    }
+
+    private IRubyObject computeAndWrite(ThreadContext context, IRubyObject key, RubyHash options, long raceConditionTTL, Block block) {
+        IRubyObject value = block.call(context);
+        if (raceConditionTTL > 0) {
+            writeEntry(context, key, value, options, raceConditionTTL);
+        } else {
+            write(context, new IRubyObject[] { key, value, options });
+        }
+        return value;
+    }
+
+    /**
+     * Writes the value in an Entry which expires after ttl, but is kept
+     * race_condition_ttl longer in memcached to be served while recomputing.
+     */
+    private void writeEntry(ThreadContext context, IRubyObject key, IRubyObject value, RubyHash options, long raceConditionTTL) {
+        Ruby ruby = context.getRuntime();
+        long ttl = getTTL(context, new IRubyObject[] { options }, 0).getLongValue();
+        if (ttl <= 0) {
+            write(context, new IRubyObject[] { key, value, options });
+            return;
+        }
+        double expiresAt = System.currentTimeMillis() / 1000.0 + ttl;
+        IRubyObject entry = getEntryClass(ruby).callMethod(context, "new", new IRubyObject[] { value, ruby.newFloat(expiresAt) });
+        // the entry is marshaled even if the client is raw by default
+        set(context, new IRubyObject[] { key, entry, ruby.newFixnum(ttl + raceConditionTTL), ruby.getFalse() });
+    }
+
+    private IRubyObject readEntry(ThreadContext context, IRubyObject key) {
+        try {
+            IRubyObject value = getValue(context, new IRubyObject[] { key }, false);
+            return value != null ? value : context.nil;
+        } catch (RaiseException e) {
+            // reads of a node with an open circuit
+            if ("NotFound".equals(e.getException().getMetaClass().getBaseName())) {
+                return context.nil;
+            }
+            throw e;
+        }
+    }
+
+    private IRubyObject unwrap(ThreadContext context, IRubyObject value) {
+        if (isEntry(context, value)) {
+            return value.callMethod(context, "value");
+        }
+        return value;
+    }
+
+    private boolean isEntry(ThreadContext context, IRubyObject value) {
+        return getEntryClass(context.getRuntime()).isInstance(value);
+    }
+
+    private RubyClass getEntryClass(Ruby ruby) {
+        return ruby.getModule("Memcached").getClass("Rails").getClass("Entry");
+    }
+
+    private long getRaceConditionTTL(ThreadContext context, RubyHash options) {
+        Ruby ruby = context.getRuntime();
+        IRubyObject raceConditionTTL = options.op_aref(context, ruby.newSymbol("race_condition_ttl"));
+        if (raceConditionTTL.isNil()) {
+            return 0;
+        }
+        return raceConditionTTL.convertToInteger().getLongValue();
+    }
+
+    /**
+     * Flight is an in-process computation of a missing key.
+     */
+    private static class Flight {
+        private final Thread owner = Thread.currentThread();
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile IRubyObject value;
+
+        private volatile boolean completed;
+
+        private volatile RaiseException error;
+
+        private void complete(IRubyObject value) {
+            this.value = value;
+            this.completed = true;
+        }
+
+        private void fail(RaiseException error) {
+            this.error = error;
+        }
+
+        private void release() {
+            latch.countDown();
+        }
+
+        /**
+         * @return true if the computation completed, false if it left
+         *         without a value
+         * @throws RaiseException the exception the computation raised
+         */
+        private boolean await(ThreadContext context) {
+            try {
+                while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+                    context.pollThreadEvents();
+                }
+            } catch (InterruptedException e) {
+                throw context.getRuntime().newThreadError(e.getLocalizedMessage());
+            }
+            if (error != null) {
+                throw new RaiseException(error.getException());
+            }
+            return completed;
+        }
+    }
+
     private RubyFixnum getTTL(ThreadContext context, IRubyObject[] args, int index) {
         Ruby ruby = context.getRuntime();
         if (args.length > index) {
@@ -228,11 +441,14 @@ public class Rails extends Memcached {
 
     private RubyBoolean notRaw(ThreadContext context, IRubyObject[] args, int index) {
         Ruby ruby = context.getRuntime();
-        RubyBoolean notRaw = ruby.getTrue();
+        RubyBoolean notRaw = ruby.newBoolean(!isRawByDefault());
         if (args.length > index) {
             if ((args[index] instanceof RubyBoolean && ruby.getTrue() == args[index]) ||
                 (args[index] instanceof RubyHash && ruby.getTrue() == ((RubyHash) args[index]).get(ruby.newSymbol("raw")))) {
                 notRaw = ruby.getFalse();
+            } else if (args[index] instanceof RubyBoolean ||
+                (args[index] instanceof RubyHash && ((RubyHash) args[index]).containsKey(ruby.newSymbol("raw")))) {
+                notRaw = ruby.getTrue();
             }
         }
         return notRaw;
@@ -0,0 +1,147 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ExtendedMemcachedClient;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Replicator keeps a copy of every key on the nodes following its primary
+ * on the continuum, and hedges gets: if the primary hasn't answered within
+ * the hedge delay, the get is also sent to a replica and the first hit wins.
+ *
+ * Replicas are written without waiting for them, a replica which misses
+ * never wins over a node which hits, and a get only times out if no node
+ * answered.
+ *
+ */
+public class Replicator {
+    private final ExtendedMemcachedClient client;
+
+    private final KetamaNodeLocator locator;
+
+    private final Transcoder<Object> transcoder;
+
+    private final int replicas;
+
+    private final long hedgeDelay;
+
+    /**
+     * @param replicas number of nodes keeping a copy besides the primary
+     * @param hedgeDelay milliseconds to wait for the primary before asking a replica
+     */
+    public Replicator(ExtendedMemcachedClient client, Transcoder<Object> transcoder, int replicas, int hedgeDelay) {
+        this.client = client;
+        this.locator = (KetamaNodeLocator) client.getLocator();
+        this.transcoder = transcoder;
+        this.replicas = replicas;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * @param valueTranscoder transcoder the value is stored with on its primary
+     */
+    public void set(String key, int expiry, Object value, Transcoder<Object> valueTranscoder) {
+        if (!locator.getReplicas(key, replicas).isEmpty()) {
+            set(key, expiry, valueTranscoder.encode(value));
+        }
+    }
+
+    /**
+     * Sets an already encoded value, it may be called by the thread of the
+     * connection.
+     */
+    public void set(String key, int expiry, CachedData data) {
+        for (MemcachedNode node : locator.getReplicas(key, replicas)) {
+            client.set(node, key, expiry, data);
+        }
+    }
+
+    public void delete(String key) {
+        for (MemcachedNode node : locator.getReplicas(key, replicas)) {
+            client.delete(node, key);
+        }
+    }
+
+    /**
+     * Gets a key from its primary, and from a replica too if the primary is
+     * slower than the hedge delay, it behaves like MemcachedClient#get.
+     *
+     * @param timeout milliseconds to wait for the value
+     */
+    public Object get(String key, long timeout) {
+        BlockingQueue<GetFuture<Object>> completed = new LinkedBlockingQueue<GetFuture<Object>>();
+        List<GetFuture<Object>> futures = new ArrayList<GetFuture<Object>>();
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        long hedgeAt = Math.min(start + hedgeDelay, deadline);
+        boolean hedged = false;
+        boolean answered = false;
+        ExecutionException error = null;
+        futures.add(client.asyncGet(key, transcoder, completed));
+        try {
+            while (futures.size() > 0) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    // a miss of a node isn't turned into a timeout by a slower one
+                    if (answered) {
+                        break;
+                    }
+                    throw new OperationTimeoutException("Timeout waiting for value");
+                }
+                if (!hedged && now >= hedgeAt) {
+                    hedged = true;
+                    hedge(key, completed, futures);
+                }
+                GetFuture<Object> future = completed.poll((hedged ? deadline : hedgeAt) - now, TimeUnit.MILLISECONDS);
+                if (future == null || !futures.remove(future)) {
+                    continue;
+                }
+                try {
+                    Object value = future.get();
+                    if (value != null) {
+                        return value;
+                    }
+                    answered = true;
+                } catch (ExecutionException e) {
+                    error = e;
+                    // don't wait for the hedge delay if the primary failed
+                    if (!hedged) {
+                        hedged = true;
+                        hedge(key, completed, futures);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for value", e);
+        } finally {
+            for (GetFuture<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (!answered && error != null) {
+            throw new RuntimeException("Exception waiting for value", error);
+        }
+        return null;
+    }
+
+    private void hedge(String key, BlockingQueue<GetFuture<Object>> completed, List<GetFuture<Object>> futures) {
+        for (MemcachedNode node : locator.getReplicas(key, replicas)) {
+            if (node.isActive()) {
+                futures.add(client.asyncGet(node, key, transcoder, completed));
+                return;
+            }
+        }
+    }
+}
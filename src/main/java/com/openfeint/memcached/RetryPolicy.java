@@ -0,0 +1,146 @@
+package com.openfeint.memcached;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *
+ * RetryPolicy decides if and when a timed out operation is retried.
+ *
+ * A call retries at most retry_limit times, within its deadline if it has
+ * one, sleeping a random backoff between 0 and retry_backoff * 2^retry,
+ * capped by retry_backoff_max, before each retry. Each node has a token
+ * bucket of retry_budget retries per second, so that an overloaded node
+ * isn't flooded by retries.
+ *
+ */
+public class RetryPolicy {
+    private static final Random RANDOM = new Random();
+
+    private final NodeLocator locator;
+
+    private final ConcurrentMap<MemcachedNode, TokenBucket> buckets;
+
+    private final int retryLimit;
+
+    private final long deadline;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    private final int budget;
+
+    /**
+     * @param retryLimit max retries of a call
+     * @param deadline milliseconds a call may take including retries, or 0 for no deadline
+     * @param backoff base milliseconds of the backoff
+     * @param maxBackoff max milliseconds of the backoff
+     * @param budget retries per second per node
+     */
+    public RetryPolicy(NodeLocator locator, int retryLimit, long deadline, long backoff, long maxBackoff, int budget) {
+        this(locator, new ConcurrentHashMap<MemcachedNode, TokenBucket>(), retryLimit, deadline, backoff, maxBackoff, budget);
+    }
+
+    private RetryPolicy(NodeLocator locator, ConcurrentMap<MemcachedNode, TokenBucket> buckets,
+                        int retryLimit, long deadline, long backoff, long maxBackoff, int budget) {
+        this.locator = locator;
+        this.buckets = buckets;
+        this.retryLimit = retryLimit;
+        this.deadline = deadline;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.budget = budget;
+    }
+
+    /**
+     * @return a policy with the given options overridden, which shares the
+     *         retry budget of this policy
+     */
+    public RetryPolicy override(Map<String, String> opts) {
+        int retryLimit = this.retryLimit;
+        long deadline = this.deadline;
+        long backoff = this.backoff;
+        long maxBackoff = this.maxBackoff;
+        if (opts.containsKey("exception_retry_limit")) {
+            retryLimit = Integer.parseInt(opts.get("exception_retry_limit"));
+        }
+        if (opts.containsKey("retry_deadline")) {
+            deadline = Long.parseLong(opts.get("retry_deadline"));
+        }
+        if (opts.containsKey("retry_backoff")) {
+            backoff = Long.parseLong(opts.get("retry_backoff"));
+        }
+        if (opts.containsKey("retry_backoff_max")) {
+            maxBackoff = Long.parseLong(opts.get("retry_backoff_max"));
+        }
+        return new RetryPolicy(locator, buckets, retryLimit, deadline, backoff, maxBackoff, budget);
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param key the key of the call, or null if it has many keys
+     * @param retry number of retries done
+     * @param remaining milliseconds left before the deadline
+     * @return milliseconds to sleep before retrying, or -1 if the call must not be retried
+     */
+    public long getRetryDelay(String key, int retry, long remaining) {
+        if (retry >= retryLimit || remaining <= 0) {
+            return -1;
+        }
+        long delay = 0;
+        if (backoff > 0) {
+            long ceiling = Math.min(maxBackoff, backoff << Math.min(retry, 30));
+            delay = (long) (RANDOM.nextDouble() * ceiling);
+        }
+        if (delay >= remaining) {
+            return -1;
+        }
+        if (key != null && !getBucket(locator.getPrimary(key)).tryAcquire()) {
+            return -1;
+        }
+        return delay;
+    }
+
+    private TokenBucket getBucket(MemcachedNode node) {
+        TokenBucket bucket = buckets.get(node);
+        if (bucket == null) {
+            buckets.putIfAbsent(node, new TokenBucket(budget));
+            bucket = buckets.get(node);
+        }
+        return bucket;
+    }
+
+    private static class TokenBucket {
+        private final int capacity;
+
+        private double tokens;
+
+        private long refilledAt;
+
+        private TokenBucket(int capacity) {
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = System.currentTimeMillis();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * capacity / 1000.0);
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.openfeint.memcached;
+
+import com.openfeint.memcached.error.Error;
+import com.openfeint.memcached.transcoder.ChunkManifest;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ExtendedMemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+import org.jruby.Ruby;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * ValueChunker stores the values larger than the chunk size, like those
+ * above the 1MB item limit of memcached, in chunks under keys of their own
+ * and a ChunkManifest under the key of the value, and reads them back.
+ *
+ * The chunks are set at once so that they are pipelined per node, and the
+ * manifest is only stored once they all are. Every write uses new chunk
+ * keys, so that a reader never mixes the chunks of two writes, the chunks
+ * of an overwritten or deleted value are left to expire. A value missing a
+ * chunk, like a partially evicted one, reads as a miss.
+ *
+ */
+public class ValueChunker {
+    // passes the chunks through, they are already encoded
+    private static final Transcoder<CachedData> CACHED_DATA = new Transcoder<CachedData>() {
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        public CachedData encode(CachedData o) {
+            return o;
+        }
+
+        public CachedData decode(CachedData d) {
+            return d;
+        }
+
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+    };
+
+    private final Ruby ruby;
+
+    private final ExtendedMemcachedClient client;
+
+    private final String prefixKey;
+
+    private final int chunkSize;
+
+    private final int multiGetChunkSize;
+
+    private final Random random = new Random();
+
+    /**
+     * @param prefixKey prefix of the chunk keys
+     * @param chunkSize max number of bytes of a chunk, or 0 to store values whole
+     * @param multiGetChunkSize max number of keys of a get of chunks
+     */
+    public ValueChunker(Ruby ruby, ExtendedMemcachedClient client, String prefixKey, int chunkSize, int multiGetChunkSize) {
+        this.ruby = ruby;
+        this.client = client;
+        this.prefixKey = prefixKey;
+        this.chunkSize = chunkSize;
+        this.multiGetChunkSize = multiGetChunkSize;
+    }
+
+    /**
+     * @param timeout milliseconds to wait for the chunks to be stored
+     * @return a transcoder which stores the chunks of the values larger than
+     *         the chunk size and encodes their manifest, or valueTranscoder if
+     *         values are stored whole
+     */
+    public Transcoder<Object> storing(final int expiry, final Transcoder<Object> valueTranscoder, final long timeout) {
+        if (chunkSize <= 0) {
+            return valueTranscoder;
+        }
+        return new Transcoder<Object>() {
+            // replicas encode the same value again
+            private Object lastValue;
+
+            private CachedData lastData;
+
+            public boolean asyncDecode(CachedData d) {
+                return false;
+            }
+
+            public CachedData encode(Object o) {
+                if (o != lastValue || lastData == null) {
+                    lastData = store(expiry, valueTranscoder.encode(o), timeout);
+                    lastValue = o;
+                }
+                return lastData;
+            }
+
+            public Object decode(CachedData d) {
+                return valueTranscoder.decode(d);
+            }
+
+            public int getMaxSize() {
+                return valueTranscoder.getMaxSize();
+            }
+        };
+    }
+
+    /**
+     * @return the value got as is, or the value of its chunks if it's a
+     *         manifest, or null if a chunk is missing
+     */
+    public Object resolve(String key, Object value, Transcoder<Object> transcoder, long timeout) throws InterruptedException {
+        if (!(value instanceof ChunkManifest)) {
+            return value;
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(key, value);
+        resolve(values, transcoder, timeout);
+        return values.get(key);
+    }
+
+    /**
+     * Replaces the manifests of the values got by the values of their chunks,
+     * got at once, and removes the values missing a chunk.
+     */
+    public void resolve(Map<String, Object> values, Transcoder<Object> transcoder, long timeout) throws InterruptedException {
+        Map<String, ChunkManifest> manifests = new HashMap<String, ChunkManifest>();
+        List<String> chunkKeys = new ArrayList<String>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof ChunkManifest) {
+                ChunkManifest manifest = (ChunkManifest) entry.getValue();
+                manifests.put(entry.getKey(), manifest);
+                chunkKeys.addAll(manifest.getChunkKeys());
+            }
+        }
+        if (manifests.isEmpty()) {
+            return;
+        }
+        MultiGet multiGet = new MultiGet(client, chunkKeys, multiGetChunkSize, CachedData.MAX_SIZE);
+        Map<String, CachedData> chunks;
+        try {
+            chunks = multiGet.getAll(timeout);
+        } catch (TimeoutException e) {
+            // the values of the chunks not got in time are missing
+            chunks = multiGet.getReceived();
+        } finally {
+            multiGet.cancel();
+        }
+        for (Map.Entry<String, ChunkManifest> entry : manifests.entrySet()) {
+            CachedData data = entry.getValue().join(chunks);
+            if (data == null) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), transcoder.decode(data));
+            }
+        }
+    }
+
+    private CachedData store(int expiry, CachedData data, long timeout) {
+        if (data.getData().length <= chunkSize) {
+            return data;
+        }
+        String base = prefixKey + "chunk:" + Long.toHexString(random.nextLong()) + ":";
+        ChunkManifest manifest = ChunkManifest.create(data, chunkSize, base);
+        List<String> keys = manifest.getChunkKeys();
+        List<CachedData> chunks = manifest.split(data);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < keys.size(); i++) {
+            futures.add(client.set(keys.get(i), expiry, chunks.get(i), CACHED_DATA));
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (Future<Boolean> future : futures) {
+                if (!future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+                    throw Error.newNotStored(ruby, "chunk not stored");
+                }
+            }
+        } catch (TimeoutException e) {
+            throw Error.newNotStored(ruby, "chunk not stored in time");
+        } catch (ExecutionException e) {
+            throw Error.newNotStored(ruby, "chunk not stored");
+        } catch (InterruptedException e) {
+            throw ruby.newThreadError(e.getLocalizedMessage());
+        }
+        return manifest.toCachedData();
+    }
+}
@@ -0,0 +1,146 @@
+package com.openfeint.memcached.transcoder;
+
+import net.spy.memcached.CachedData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * ChunkManifest describes a value too large for one item, split in chunks
+ * stored under their own keys. The manifest is stored under the key of the
+ * value with the chunked flag, MarshalTranscoder decodes it as is.
+ *
+ * It keeps the flags, length and CRC32 of the encoded value, so that a
+ * value missing a chunk or mixing chunks of different writes is detected
+ * instead of decoded.
+ *
+ */
+public class ChunkManifest {
+    public static final int CHUNKED_FLAG = 128;
+
+    private static final int VERSION = 1;
+
+    private final int flags;
+
+    private final int length;
+
+    private final int checksum;
+
+    private final int chunkSize;
+
+    // chunk keys are the base followed by the chunk number
+    private final String base;
+
+    private ChunkManifest(int flags, int length, int checksum, int chunkSize, String base) {
+        this.flags = flags;
+        this.length = length;
+        this.checksum = checksum;
+        this.chunkSize = chunkSize;
+        this.base = base;
+    }
+
+    /**
+     * @param base prefix of the chunk keys, unique to this write
+     */
+    public static ChunkManifest create(CachedData value, int chunkSize, String base) {
+        byte[] data = value.getData();
+        return new ChunkManifest(value.getFlags(), data.length, checksum(data, 0, data.length), chunkSize, base);
+    }
+
+    public static ChunkManifest parse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readUnsignedByte() != VERSION) {
+            throw new IOException("Unknown chunk manifest version");
+        }
+        int flags = in.readInt();
+        int length = in.readInt();
+        int checksum = in.readInt();
+        int chunkSize = in.readInt();
+        String base = in.readUTF();
+        if (length < 0 || chunkSize <= 0) {
+            throw new IOException("Malformed chunk manifest");
+        }
+        return new ChunkManifest(flags, length, checksum, chunkSize, base);
+    }
+
+    public CachedData toCachedData() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(flags);
+            out.writeInt(length);
+            out.writeInt(checksum);
+            out.writeInt(chunkSize);
+            out.writeUTF(base);
+            out.close();
+            byte[] data = bytes.toByteArray();
+            return new CachedData(CHUNKED_FLAG, data, data.length);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public List<String> getChunkKeys() {
+        int count = (int) (((long) length + chunkSize - 1) / chunkSize);
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(base + i);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the chunks of value, in the order of getChunkKeys
+     */
+    public List<CachedData> split(CachedData value) {
+        byte[] data = value.getData();
+        List<CachedData> chunks = new ArrayList<CachedData>();
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, data.length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            chunks.add(new CachedData(0, chunk, chunk.length));
+        }
+        return chunks;
+    }
+
+    /**
+     * @param chunks chunks got by key, may miss some
+     * @return the value, or null if a chunk is missing or doesn't match
+     */
+    public CachedData join(Map<String, CachedData> chunks) {
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (String key : getChunkKeys()) {
+            CachedData chunk = chunks.get(key);
+            if (chunk == null) {
+                return null;
+            }
+            byte[] bytes = chunk.getData();
+            if (bytes.length > length - offset) {
+                return null;
+            }
+            System.arraycopy(bytes, 0, data, offset, bytes.length);
+            offset += bytes.length;
+        }
+        if (offset != length || checksum(data, 0, length) != checksum) {
+            return null;
+        }
+        return new CachedData(flags, data, data.length);
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,360 @@
+package com.openfeint.memcached.transcoder;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.RubyTime;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ *
+ * CompactSerializer writes nil, booleans, integers, floats, strings,
+ * symbols, arrays, hashes and times in a compact binary format, without
+ * the class lookups, links and instance variables of Marshal.
+ *
+ * A value is a tag byte followed by its data, lengths and integers are
+ * zigzag varints. Shared and recursive references aren't kept, so deep
+ * values, subclasses, strings with instance variables and hashes with
+ * defaults are left to Marshal.
+ *
+ */
+final class CompactSerializer {
+    private static final int VERSION = 1;
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final int NIL = 0;
+
+    private static final int TRUE = 1;
+
+    private static final int FALSE = 2;
+
+    private static final int FIXNUM = 3;
+
+    private static final int BIGNUM = 4;
+
+    private static final int FLOAT = 5;
+
+    private static final int STRING = 6;
+
+    private static final int SYMBOL = 7;
+
+    private static final int ARRAY = 8;
+
+    private static final int HASH = 9;
+
+    private static final int TIME = 10;
+
+    // string encodings, in the byte after the string tag
+    private static final Encoding[] ENCODINGS = {
+        ASCIIEncoding.INSTANCE, UTF8Encoding.INSTANCE, USASCIIEncoding.INSTANCE
+    };
+
+    private static final int UTC = 0;
+
+    private static final int LOCAL = 1;
+
+    private CompactSerializer() {
+    }
+
+    /**
+     * @return false if the value can't be written, the buffer is then partially written
+     */
+    static boolean dump(Ruby ruby, IRubyObject o, MarshalBuffer out) {
+        out.write(VERSION);
+        return dumpValue(ruby, o, out, 0);
+    }
+
+    static IRubyObject load(Ruby ruby, byte[] data) throws IOException {
+        Reader in = new Reader(ruby, data);
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unknown compact format version");
+        }
+        IRubyObject value = in.readValue();
+        if (in.position != data.length) {
+            throw new IOException("Trailing bytes after compact value");
+        }
+        return value;
+    }
+
+    private static boolean dumpValue(Ruby ruby, IRubyObject o, MarshalBuffer out, int depth) {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        if (o.isNil()) {
+            out.write(NIL);
+        } else if (o == ruby.getTrue()) {
+            out.write(TRUE);
+        } else if (o == ruby.getFalse()) {
+            out.write(FALSE);
+        } else if (o instanceof RubyFixnum) {
+            out.write(FIXNUM);
+            writeLong(out, ((RubyFixnum) o).getLongValue());
+        } else if (o instanceof RubyFloat) {
+            out.write(FLOAT);
+            long bits = Double.doubleToRawLongBits(((RubyFloat) o).getDoubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (o instanceof RubySymbol) {
+            // symbol names keep one byte per char
+            String name = ((RubySymbol) o).asJavaString();
+            out.write(SYMBOL);
+            writeLong(out, name.length());
+            for (int i = 0; i < name.length(); i++) {
+                out.write(name.charAt(i));
+            }
+        } else if (o.getMetaClass() == ruby.getString()) {
+            return dumpString(ruby, (RubyString) o, out);
+        } else if (o.getMetaClass() == ruby.getArray()) {
+            RubyArray array = (RubyArray) o;
+            if (array.hasVariables()) {
+                return false;
+            }
+            out.write(ARRAY);
+            writeLong(out, array.getLength());
+            for (int i = 0; i < array.getLength(); i++) {
+                if (!dumpValue(ruby, array.eltInternal(i), out, depth + 1)) {
+                    return false;
+                }
+            }
+        } else if (o.getMetaClass() == ruby.getHash()) {
+            RubyHash hash = (RubyHash) o;
+            if (hash.hasVariables() || hash.hasDefaultProc() || !hash.getIfNone().isNil()) {
+                return false;
+            }
+            out.write(HASH);
+            writeLong(out, hash.size());
+            for (Map.Entry<IRubyObject, IRubyObject> entry : (Iterable<Map.Entry<IRubyObject, IRubyObject>>) hash.directEntrySet()) {
+                if (!dumpValue(ruby, entry.getKey(), out, depth + 1) ||
+                    !dumpValue(ruby, entry.getValue(), out, depth + 1)) {
+                    return false;
+                }
+            }
+        } else if (o.getMetaClass() == ruby.getTime()) {
+            return dumpTime(ruby, (RubyTime) o, out);
+        } else if (o instanceof RubyBignum) {
+            byte[] digits = ((RubyBignum) o).getValue().toByteArray();
+            out.write(BIGNUM);
+            writeLong(out, digits.length);
+            out.write(digits, 0, digits.length);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean dumpString(Ruby ruby, RubyString string, MarshalBuffer out) {
+        if (string.hasVariables()) {
+            return false;
+        }
+        int encoding = 0;
+        if (ruby.is1_9()) {
+            encoding = encodingIndex(string.getEncoding());
+            if (encoding < 0) {
+                return false;
+            }
+        }
+        ByteList bytes = string.getByteList();
+        out.write(STRING);
+        out.write(encoding);
+        writeLong(out, bytes.getRealSize());
+        out.write(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        return true;
+    }
+
+    private static boolean dumpTime(Ruby ruby, RubyTime time, MarshalBuffer out) {
+        if (time.hasVariables()) {
+            return false;
+        }
+        DateTime dateTime = time.getDateTime();
+        int zone;
+        if (dateTime.getZone() == DateTimeZone.UTC) {
+            zone = UTC;
+        } else if (dateTime.getZone().equals(RubyTime.getLocalTimeZone(ruby))) {
+            zone = LOCAL;
+        } else {
+            return false;
+        }
+        out.write(TIME);
+        out.write(zone);
+        writeLong(out, dateTime.getMillis());
+        writeLong(out, time.getUSec());
+        return true;
+    }
+
+    private static int encodingIndex(Encoding encoding) {
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            if (ENCODINGS[i] == encoding) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeLong(MarshalBuffer out, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private static class Reader {
+        private final Ruby ruby;
+
+        private final byte[] data;
+
+        private int position;
+
+        private Reader(Ruby ruby, byte[] data) {
+            this.ruby = ruby;
+            this.data = data;
+        }
+
+        private IRubyObject readValue() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+            case NIL:
+                return ruby.getNil();
+            case TRUE:
+                return ruby.getTrue();
+            case FALSE:
+                return ruby.getFalse();
+            case FIXNUM:
+                return RubyFixnum.newFixnum(ruby, readLong());
+            case BIGNUM:
+                int digits = readLength();
+                if (digits == 0) {
+                    throw new IOException("Malformed compact bignum");
+                }
+                return RubyBignum.newBignum(ruby, new BigInteger(readBytes(digits)));
+            case FLOAT:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = bits << 8 | readByte();
+                }
+                return RubyFloat.newFloat(ruby, Double.longBitsToDouble(bits));
+            case STRING:
+                return readString();
+            case SYMBOL:
+                return ruby.newSymbol(new ByteList(readBytes(readLength()), false));
+            case ARRAY:
+                int length = readLength();
+                IRubyObject[] values = new IRubyObject[length];
+                for (int i = 0; i < length; i++) {
+                    values[i] = readValue();
+                }
+                return RubyArray.newArrayNoCopy(ruby, values);
+            case HASH:
+                int size = readLength();
+                RubyHash hash = RubyHash.newHash(ruby);
+                for (int i = 0; i < size; i++) {
+                    IRubyObject key = readValue();
+                    IRubyObject value = readValue();
+                    if (ruby.is1_9()) {
+                        hash.fastASetCheckString19(ruby, key, value);
+                    } else {
+                        hash.fastASetCheckString(ruby, key, value);
+                    }
+                }
+                return hash;
+            case TIME:
+                return readTime();
+            default:
+                throw new IOException("Unknown compact value tag " + tag);
+            }
+        }
+
+        private IRubyObject readString() throws IOException {
+            int encoding = readByte();
+            if (encoding >= ENCODINGS.length) {
+                throw new IOException("Unknown compact string encoding " + encoding);
+            }
+            int length = readLength();
+            if (length > data.length - position) {
+                throw new IOException("Truncated compact value");
+            }
+            ByteList bytes;
+            if (ruby.is1_9()) {
+                bytes = new ByteList(data, position, length, ENCODINGS[encoding], true);
+            } else {
+                bytes = new ByteList(data, position, length, true);
+            }
+            position += length;
+            return RubyString.newStringNoCopy(ruby, bytes);
+        }
+
+        private IRubyObject readTime() throws IOException {
+            int zone = readByte();
+            long millis = readLong();
+            long usec = readLong();
+            DateTimeZone timeZone;
+            if (zone == UTC) {
+                timeZone = DateTimeZone.UTC;
+            } else if (zone == LOCAL) {
+                timeZone = RubyTime.getLocalTimeZone(ruby);
+            } else {
+                throw new IOException("Unknown compact time zone " + zone);
+            }
+            RubyTime time = RubyTime.newTime(ruby, new DateTime(millis, timeZone));
+            time.setUSec(usec);
+            return time;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Truncated compact value");
+            }
+            return data[position++] & 0xff;
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length > data.length - position) {
+                throw new IOException("Truncated compact value");
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        private int readLength() throws IOException {
+            long length = readLong();
+            // each element takes at least one byte
+            if (length < 0 || length > data.length - position) {
+                throw new IOException("Malformed compact value length");
+            }
+            return (int) length;
+        }
+
+        private long readLong() throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("Malformed compact varint");
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.openfeint.memcached.transcoder;
+
+import net.spy.memcached.CachedData;
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.io.IOException;
+
+/**
+ *
+ * CompactTranscoder writes values with CompactSerializer, which is faster
+ * than Marshal for the common hashes, arrays, strings and numbers. Values
+ * it can't write are marshaled.
+ *
+ * Compact values have the compact flag, values without it decode like with
+ * MarshalTranscoder.
+ *
+ */
+public class CompactTranscoder extends MarshalTranscoder {
+    static final int COMPACT_FLAG = 64;
+
+    public CompactTranscoder(Ruby ruby) {
+        super(ruby);
+    }
+
+    public CachedData encode(Object o) {
+        if (o instanceof IRubyObject) {
+            MarshalBuffer buffer = MarshalBuffer.acquire(0);
+            try {
+                if (CompactSerializer.dump(ruby, (IRubyObject) o, buffer)) {
+                    byte[] bytes = buffer.toByteArray();
+                    return new CachedData(COMPACT_FLAG, bytes, bytes.length);
+                }
+            } finally {
+                buffer.release();
+            }
+        }
+        return super.encode(o);
+    }
+
+    public Object decode(CachedData d) {
+        if (d.getFlags() != COMPACT_FLAG) {
+            return super.decode(d);
+        }
+        try {
+            return CompactSerializer.load(ruby, d.getData());
+        } catch (IOException e) {
+            throw ruby.newIOErrorFromException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.openfeint.memcached.transcoder;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * DictionaryTrainer builds a preset dictionary for MarshalDictionaryTranscoder
+ * from a sample of marshaled values.
+ *
+ * It keeps the runs of bytes shared by several samples, like hash keys and
+ * class names, the most common runs last since zlib references the end of
+ * the dictionary with the shortest distances.
+ *
+ */
+public class DictionaryTrainer {
+    // zlib can't reference bytes further than its 32k window
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int GRAM_SIZE = 6;
+
+    // bytes are mapped 1:1 to chars, so that runs can be kept as strings
+    private static final String CHARSET = "ISO-8859-1";
+
+    private DictionaryTrainer() {
+    }
+
+    /**
+     * @param samples marshaled values
+     * @param size max number of bytes of the dictionary
+     * @return the dictionary
+     */
+    public static byte[] train(List<byte[]> samples, int size) {
+        size = Math.min(size, MAX_SIZE);
+        List<String> texts = new ArrayList<String>();
+        for (byte[] sample : samples) {
+            texts.add(toText(sample));
+        }
+
+        // number of samples containing each gram
+        Map<String, Integer> grams = new HashMap<String, Integer>();
+        for (String text : texts) {
+            Set<String> seen = new HashSet<String>();
+            for (int i = 0; i + GRAM_SIZE <= text.length(); i++) {
+                seen.add(text.substring(i, i + GRAM_SIZE));
+            }
+            for (String gram : seen) {
+                Integer count = grams.get(gram);
+                grams.put(gram, count == null ? 1 : count + 1);
+            }
+        }
+
+        // number of samples containing each maximal run of shared grams
+        final Map<String, Integer> runs = new HashMap<String, Integer>();
+        for (String text : texts) {
+            Set<String> seen = new HashSet<String>();
+            int start = -1;
+            for (int i = 0; i + GRAM_SIZE <= text.length() + 1; i++) {
+                boolean shared = i + GRAM_SIZE <= text.length() && grams.get(text.substring(i, i + GRAM_SIZE)) > 1;
+                if (shared && start < 0) {
+                    start = i;
+                } else if (!shared && start >= 0) {
+                    seen.add(text.substring(start, i - 1 + GRAM_SIZE));
+                    start = -1;
+                }
+            }
+            for (String run : seen) {
+                Integer count = runs.get(run);
+                runs.put(run, count == null ? 1 : count + 1);
+            }
+        }
+
+        List<String> ranked = new ArrayList<String>(runs.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long scoreA = (long) runs.get(a) * a.length();
+                long scoreB = (long) runs.get(b) * b.length();
+                return scoreA > scoreB ? -1 : scoreA < scoreB ? 1 : a.compareTo(b);
+            }
+        });
+
+        // best runs first, then reversed so that they end the dictionary
+        List<String> chosen = new ArrayList<String>();
+        StringBuilder dictionary = new StringBuilder();
+        for (String run : ranked) {
+            if (dictionary.length() + run.length() > size) {
+                continue;
+            }
+            if (dictionary.indexOf(run) >= 0) {
+                continue;
+            }
+            chosen.add(run);
+            dictionary.append(run);
+        }
+        Collections.reverse(chosen);
+        dictionary.setLength(0);
+        for (String run : chosen) {
+            dictionary.append(run);
+        }
+        return toBytes(dictionary.toString());
+    }
+
+    private static String toText(byte[] bytes) {
+        try {
+            return new String(bytes, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] toBytes(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.openfeint.memcached.transcoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * LzCodec compresses blocks in the LZ4 block format: a sequence is a token,
+ * literals, a 2 bytes little endian offset and the match length, the last
+ * sequence has literals only.
+ *
+ * It finds matches with a single hash table lookup, so it compresses less
+ * than zlib but decompresses several times faster.
+ *
+ */
+final class LzCodec {
+    private static final int MIN_MATCH = 4;
+
+    private static final int HASH_LOG = 12;
+
+    private static final int MAX_OFFSET = 65535;
+
+    // the last literals and the last match start of a block, as LZ4 requires
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MF_LIMIT = 12;
+
+    private static final int RUN_MASK = 15;
+
+    // positions of the last 4 bytes sequences by hash, reused by the compressions of a thread
+    private static final ThreadLocal<int[]> TABLES = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    private LzCodec() {
+    }
+
+    /**
+     * @return the end of the compressed bytes in dest, or -1 if they don't fit before destEnd
+     */
+    static int compress(byte[] src, int srcLength, byte[] dest, int destOff, int destEnd) {
+        int[] table = TABLES.get();
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int op = destOff;
+        int ip = 1;
+        int matchLimit = srcLength - LAST_LITERALS;
+        int mfLimit = srcLength - MF_LIMIT;
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int hash = hash(sequence);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // skip faster over incompressible data
+                ip += 1 + ((ip - anchor) >>> 6);
+                continue;
+            }
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dest, op, destEnd);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, srcLength - anchor, 0, 0, dest, op, destEnd);
+    }
+
+    /**
+     * @param length number of bytes the block decompresses to
+     */
+    static void decompress(byte[] src, int srcOff, int srcEnd, byte[] dest, int length) throws IOException {
+        int ip = srcOff;
+        int op = 0;
+        while (true) {
+            if (ip >= srcEnd) {
+                throw new IOException("Truncated compressed data");
+            }
+            int token = src[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("Truncated compressed data");
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > length - op) {
+                throw new IOException("Malformed compressed data");
+            }
+            copy(src, ip, dest, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw new IOException("Truncated compressed data");
+            }
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op) {
+                throw new IOException("Malformed compressed data");
+            }
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw new IOException("Truncated compressed data");
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > length - op) {
+                throw new IOException("Malformed compressed data");
+            }
+            if (offset >= matchLength) {
+                copy(dest, op - offset, dest, op, matchLength);
+            } else {
+                // the match overlaps the bytes it writes
+                for (int i = op - offset, end = op + matchLength; op < end; ) {
+                    dest[op++] = dest[i++];
+                }
+                continue;
+            }
+            op += matchLength;
+        }
+        if (op != length) {
+            throw new IOException("Malformed compressed data");
+        }
+    }
+
+    /**
+     * @param matchLength length of the match, or 0 for the last sequence
+     * @return the end of the sequence in dest, or -1 if it doesn't fit before destEnd
+     */
+    private static int writeSequence(byte[] src, int literalOff, int literalLength, int offset, int matchLength,
+                                     byte[] dest, int op, int destEnd) {
+        // token, literals, their length bytes, offset and match length bytes
+        if (op + 1 + literalLength + literalLength / 255 + 1 + 2 + matchLength / 255 + 1 > destEnd) {
+            return -1;
+        }
+        int tokenOff = op++;
+        int token;
+        if (literalLength >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            op = writeLength(literalLength - RUN_MASK, dest, op);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalOff, dest, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0) {
+            dest[op++] = (byte) offset;
+            dest[op++] = (byte) (offset >>> 8);
+            int length = matchLength - MIN_MATCH;
+            if (length >= RUN_MASK) {
+                token |= RUN_MASK;
+                op = writeLength(length - RUN_MASK, dest, op);
+            } else {
+                token |= length;
+            }
+        }
+        dest[tokenOff] = (byte) token;
+        return op;
+    }
+
+    private static void copy(byte[] src, int srcOff, byte[] dest, int destOff, int length) {
+        // arraycopy costs more than a loop for the short copies of most sequences
+        if (length > 32) {
+            System.arraycopy(src, srcOff, dest, destOff, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dest[destOff + i] = src[srcOff + i];
+            }
+        }
+    }
+
+    private static int writeLength(int length, byte[] dest, int op) {
+        while (length >= 255) {
+            dest[op++] = (byte) 255;
+            length -= 255;
+        }
+        dest[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
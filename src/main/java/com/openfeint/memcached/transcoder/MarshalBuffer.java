@@ -0,0 +1,131 @@
+package com.openfeint.memcached.transcoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * MarshalBuffer is a growable byte buffer which is reused by the encodes of
+ * a thread, unlike ByteArrayOutputStream its writes are not synchronized.
+ *
+ */
+class MarshalBuffer extends OutputStream {
+    private static final int INITIAL_SIZE = 1024;
+
+    // buffers grown above this size are not kept for the next encode
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<MarshalBuffer> BUFFERS = new ThreadLocal<MarshalBuffer>() {
+        @Override
+        protected MarshalBuffer initialValue() {
+            return new MarshalBuffer(INITIAL_SIZE);
+        }
+    };
+
+    private byte[] buf;
+
+    private int count;
+
+    private boolean inUse;
+
+    MarshalBuffer(int size) {
+        buf = new byte[size];
+    }
+
+    /**
+     * @param sizeHint expected number of bytes
+     * @return the empty buffer of the current thread, or a new one if it's
+     *         already used by an outer encode
+     */
+    static MarshalBuffer acquire(int sizeHint) {
+        MarshalBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            buffer = new MarshalBuffer(Math.max(sizeHint, INITIAL_SIZE));
+        } else {
+            buffer.ensureCapacity(sizeHint);
+        }
+        buffer.inUse = true;
+        buffer.count = 0;
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to the current thread, its bytes must not be
+     * used any more.
+     */
+    void release() {
+        inUse = false;
+        if (buf.length > MAX_RETAINED_SIZE && BUFFERS.get() == this) {
+            BUFFERS.remove();
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Inflates all the input of the inflater after the written bytes.
+     *
+     * @param dictionary preset dictionary of the input, or null
+     */
+    void inflate(Inflater inflater, byte[] dictionary) throws DataFormatException, IOException {
+        while (!inflater.finished()) {
+            if (count == buf.length) {
+                ensureCapacity(count + 1);
+            }
+            int inflated = inflater.inflate(buf, count, buf.length - count);
+            if (inflated == 0 && inflater.needsDictionary()) {
+                if (dictionary == null) {
+                    throw new IOException("Missing preset dictionary");
+                }
+                inflater.setDictionary(dictionary);
+                dictionary = null;
+            } else if (inflated == 0 && inflater.needsInput()) {
+                throw new IOException("Truncated compressed data");
+            }
+            count += inflated;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Grows the buffer to size bytes, which the caller writes in getBuffer().
+     */
+    void setSize(int size) {
+        ensureCapacity(size);
+        count = size;
+    }
+
+    /**
+     * @return the internal array, only its first size() bytes are written
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size));
+        }
+    }
+}
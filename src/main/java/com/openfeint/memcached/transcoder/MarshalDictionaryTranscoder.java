@@ -0,0 +1,156 @@
+package com.openfeint.memcached.transcoder;
+
+import net.spy.memcached.CachedData;
+import org.jruby.Ruby;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.marshal.UnmarshalStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * MarshalDictionaryTranscoder compresses marshaled values with zlib and a
+ * preset dictionary, which shrinks small values sharing hash keys and class
+ * names that zlib alone barely compresses.
+ *
+ * Compressed values have the dictionary flag and start with the id of their
+ * dictionary. The dictionary with the highest id compresses new values, the
+ * others are kept to decode older values. Values compressed without a
+ * dictionary or not compressed at all still decode.
+ *
+ */
+public class MarshalDictionaryTranscoder extends MarshalZlibTranscoder {
+    static final int DICTIONARY_FLAG = 16;
+
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 64;
+
+    private static final String DICTIONARY_SUFFIX = ".dict";
+
+    private final byte[][] dictionaries = new byte[256][];
+
+    private final int dictionaryId;
+
+    /**
+     * @param dictionaries dictionaries by id, from 1 to 255
+     * @param compressionMinSize marshaled values smaller than this number of bytes are not compressed
+     */
+    public MarshalDictionaryTranscoder(Ruby ruby, Map<Integer, byte[]> dictionaries, int compressionMinSize) {
+        super(ruby, COMPRESS_FLAG, compressionMinSize);
+        int dictionaryId = 0;
+        for (Map.Entry<Integer, byte[]> entry : dictionaries.entrySet()) {
+            int id = entry.getKey();
+            if (id < 1 || id > 255) {
+                throw new IllegalArgumentException("dictionary id must be between 1 and 255: " + id);
+            }
+            this.dictionaries[id] = entry.getValue();
+            dictionaryId = Math.max(dictionaryId, id);
+        }
+        if (dictionaryId == 0) {
+            throw new IllegalArgumentException("no dictionary");
+        }
+        this.dictionaryId = dictionaryId;
+    }
+
+    /**
+     * Loads the dictionaries of a directory, named by their id like 1.dict.
+     */
+    public static Map<Integer, byte[]> loadDictionaries(String directory) throws IOException {
+        Map<Integer, byte[]> dictionaries = new TreeMap<Integer, byte[]>();
+        File[] files = new File(directory).listFiles();
+        if (files == null) {
+            throw new IOException("not a directory: " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(DICTIONARY_SUFFIX)) {
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(0, name.length() - DICTIONARY_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    // not a dictionary
+                    continue;
+                }
+                if (id < 1 || id > 255) {
+                    throw new IOException("dictionary id must be between 1 and 255: " + file);
+                }
+                dictionaries.put(id, readFile(file));
+            }
+        }
+        return dictionaries;
+    }
+
+    public CachedData encode(Object o) {
+        if (o instanceof IRubyObject) {
+            MarshalBuffer buffer = null;
+            try {
+                buffer = marshal((IRubyObject) o);
+                if (buffer.size() >= compressionMinSize) {
+                    byte[] bytes = deflate(buffer.getBuffer(), buffer.size(), dictionaries[dictionaryId], 1);
+                    if (bytes != null) {
+                        bytes[0] = (byte) dictionaryId;
+                        return new CachedData(DICTIONARY_FLAG, bytes, bytes.length);
+                    }
+                }
+                byte[] bytes = buffer.toByteArray();
+                return new CachedData(0, bytes, bytes.length);
+            } catch (IOException e) {
+                throw ruby.newIOErrorFromException(e);
+            } finally {
+                if (buffer != null) {
+                    buffer.release();
+                }
+            }
+        } else {
+            return super.encode(o);
+        }
+    }
+
+    public Object decode(CachedData d) {
+        if (d.getFlags() != DICTIONARY_FLAG) {
+            return super.decode(d);
+        }
+        MarshalBuffer buffer = null;
+        try {
+            byte[] data = d.getData();
+            byte[] dictionary = data.length > 0 ? dictionaries[data[0] & 0xff] : null;
+            if (dictionary == null) {
+                throw new IOException("Unknown dictionary of value");
+            }
+            buffer = inflate(data, 1, dictionary);
+            return new UnmarshalStream(ruby, new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size()), null, false, false).unmarshalObject();
+        } catch (RaiseException e) {
+            return super.decodeNumber(d, e);
+        } catch (IOException e) {
+            return super.decodeNumber(d, e);
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+package com.openfeint.memcached.transcoder;
+
+import net.spy.memcached.CachedData;
+import org.jruby.Ruby;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.marshal.UnmarshalStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * MarshalLzTranscoder compresses marshaled values with LzCodec, which
+ * decompresses several times faster than zlib for a slightly lower ratio.
+ *
+ * Compressed values have the lz flag and start with their uncompressed
+ * length on 4 bytes. Values compressed with zlib still decode.
+ *
+ */
+public class MarshalLzTranscoder extends MarshalZlibTranscoder {
+    static final int LZ_FLAG = 8;
+
+    private static final int HEADER_SIZE = 4;
+
+    public MarshalLzTranscoder(Ruby ruby) {
+        this(ruby, DEFAULT_COMPRESSION_MIN_SIZE);
+    }
+
+    /**
+     * @param compressionMinSize marshaled values smaller than this number of bytes are not compressed
+     */
+    public MarshalLzTranscoder(Ruby ruby, int compressionMinSize) {
+        super(ruby, COMPRESS_FLAG, compressionMinSize);
+    }
+
+    public CachedData encode(Object o) {
+        if (o instanceof IRubyObject) {
+            MarshalBuffer buffer = null;
+            try {
+                buffer = marshal((IRubyObject) o);
+                int length = buffer.size();
+                if (length >= compressionMinSize) {
+                    // compressed values must save 1/8 of the length
+                    byte[] bytes = new byte[HEADER_SIZE + length - length / 8];
+                    int end = LzCodec.compress(buffer.getBuffer(), length, bytes, HEADER_SIZE, bytes.length);
+                    if (end >= 0) {
+                        bytes[0] = (byte) (length >>> 24);
+                        bytes[1] = (byte) (length >>> 16);
+                        bytes[2] = (byte) (length >>> 8);
+                        bytes[3] = (byte) length;
+                        bytes = Arrays.copyOf(bytes, end);
+                        return new CachedData(LZ_FLAG, bytes, bytes.length);
+                    }
+                }
+                byte[] bytes = buffer.toByteArray();
+                return new CachedData(0, bytes, bytes.length);
+            } catch (IOException e) {
+                throw ruby.newIOErrorFromException(e);
+            } finally {
+                if (buffer != null) {
+                    buffer.release();
+                }
+            }
+        } else {
+            return super.encode(o);
+        }
+    }
+
+    public Object decode(CachedData d) {
+        if (d.getFlags() != LZ_FLAG) {
+            return super.decode(d);
+        }
+        MarshalBuffer buffer = null;
+        try {
+            byte[] data = d.getData();
+            if (data.length < HEADER_SIZE) {
+                throw new IOException("Truncated compressed data");
+            }
+            int length = (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 | (data[2] & 0xff) << 8 | (data[3] & 0xff);
+            if (length < 0 || length > getMaxSize()) {
+                throw new IOException("Malformed compressed data");
+            }
+            buffer = MarshalBuffer.acquire(length);
+            buffer.setSize(length);
+            LzCodec.decompress(data, HEADER_SIZE, data.length, buffer.getBuffer(), length);
+            return new UnmarshalStream(ruby, new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size()), null, false, false).unmarshalObject();
+        } catch (RaiseException e) {
+            return super.decodeNumber(d, e);
+        } catch (IOException e) {
+            return super.decodeNumber(d, e);
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+}
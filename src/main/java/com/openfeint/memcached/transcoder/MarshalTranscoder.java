@@ -3,21 +3,33 @@ package com.openfeint.memcached.transcoder;
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.Transcoder;
 import org.jruby.Ruby;
+import org.jruby.RubyString;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.marshal.MarshalStream;
 import org.jruby.runtime.marshal.UnmarshalStream;
+import org.jruby.util.ByteList;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
  *
  * MarshalTranscoder does marshaling and unmarshaling.
  *
+ * Values with the raw flag, stored by RawTranscoder, are decoded as strings
+ * without unmarshaling. Values with the chunked flag are decoded as their
+ * ChunkManifest.
+ *
  */
 public class MarshalTranscoder implements Transcoder {
+    public static final int RAW_FLAG = 2;
+
+    public static final int INTEGER_FLAG = 32;
+
+    // Marshal data starts with its major and minor versions
+    private static final byte MARSHAL_MAJOR = 4;
+
     protected Ruby ruby;
     private int flags;
 
@@ -36,14 +48,17 @@ public class MarshalTranscoder implements Transcoder {
 
     public CachedData encode(Object o) {
         if (o instanceof IRubyObject) {
+            MarshalBuffer buffer = null;
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                MarshalStream marshal = new MarshalStream(ruby, baos, Integer.MAX_VALUE);
-                marshal.dumpObject((IRubyObject) o);
-                byte[] bytes = baos.toByteArray();
+                buffer = marshal((IRubyObject) o);
+                byte[] bytes = buffer.toByteArray();
                 return new CachedData(getFlags(), bytes, bytes.length);
             } catch (IOException e) {
                 throw ruby.newIOErrorFromException(e);
+            } finally {
+                if (buffer != null) {
+                    buffer.release();
+                }
             }
         } else {
             return encodeNumber(o);
@@ -51,6 +66,24 @@ public class MarshalTranscoder implements Transcoder {
     }
 
     public Object decode(CachedData d) {
+        if (d.getFlags() == RAW_FLAG) {
+            return RubyString.newString(ruby, new ByteList(d.getData(), false));
+        }
+        if (d.getFlags() == ChunkManifest.CHUNKED_FLAG) {
+            // the chunks are got and decoded by the client
+            try {
+                return ChunkManifest.parse(d.getData());
+            } catch (IOException e) {
+                throw ruby.newIOErrorFromException(e);
+            }
+        }
+        if (d.getFlags() == INTEGER_FLAG || !isMarshaled(d.getData())) {
+            // counters written by incr/decr don't need to fail unmarshaling first
+            Long number = parseNumber(d.getData());
+            if (number != null) {
+                return number;
+            }
+        }
         try {
             return new UnmarshalStream(ruby, new ByteArrayInputStream(d.getData()), null, false, false).unmarshalObject();
         } catch (RaiseException e) {
@@ -68,24 +101,82 @@ public class MarshalTranscoder implements Transcoder {
         return flags;
     }
 
+    /**
+     * Marshals the object into the buffer of the current thread, which keeps
+     * the size grown by its previous values, the caller must release the
+     * buffer.
+     */
+    protected MarshalBuffer marshal(IRubyObject o) throws IOException {
+        MarshalBuffer buffer = MarshalBuffer.acquire(0);
+        try {
+            new MarshalStream(ruby, buffer, Integer.MAX_VALUE).dumpObject(o);
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Encodes numbers as their digits like incr/decr, with the integer flag.
+     */
     protected CachedData encodeNumber(Object o) {
         byte[] bytes = o.toString().getBytes();
-        return new CachedData(getFlags(), bytes, bytes.length);
+        return new CachedData(INTEGER_FLAG, bytes, bytes.length);
     }
 
     protected Long decodeNumber(CachedData d, RaiseException originalException) {
-        try {
-            return Long.valueOf(new String(d.getData()).trim());
-        } catch (NumberFormatException e) {
+        Long number = parseNumber(d.getData());
+        if (number == null) {
             throw ruby.newRuntimeError(originalException.getLocalizedMessage());
         }
+        return number;
     }
 
     protected Long decodeNumber(CachedData d, IOException originalException) {
-        try {
-            return Long.valueOf(new String(d.getData()).trim());
-        } catch (NumberFormatException e) {
+        Long number = parseNumber(d.getData());
+        if (number == null) {
             throw ruby.newIOErrorFromException(originalException);
         }
+        return number;
+    }
+
+    protected static boolean isMarshaled(byte[] data) {
+        return data.length >= 2 && data[0] == MARSHAL_MAJOR;
+    }
+
+    /**
+     * Parses the digits of a counter, which decr pads with spaces.
+     *
+     * @return the number, or null if the data isn't a number
+     */
+    protected static Long parseNumber(byte[] data) {
+        int start = 0;
+        int end = data.length;
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\r' || data[end - 1] == '\n')) {
+            end--;
+        }
+        boolean negative = start < end && data[start] == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end) {
+            return null;
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || number > (Long.MAX_VALUE - digit) / 10) {
+                return null;
+            }
+            number = number * 10 + digit;
+        }
+        return negative ? -number : number;
     }
 }
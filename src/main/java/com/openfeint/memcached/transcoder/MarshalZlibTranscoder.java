@@ -1,64 +1,83 @@
 package com.openfeint.memcached.transcoder;
 
-import com.jcraft.jzlib.JZlib;
-import com.jcraft.jzlib.ZInputStream;
-import com.jcraft.jzlib.ZOutputStream;
 import net.spy.memcached.CachedData;
 import org.jruby.Ruby;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.runtime.builtin.IRubyObject;
-import org.jruby.runtime.marshal.MarshalStream;
 import org.jruby.runtime.marshal.UnmarshalStream;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  *
  * MarshalZlibTranscoder do marshaling/unmarshaling and compressing/decompressing with zlib.
  *
+ * Values smaller than the compression min size, or which don't shrink by
+ * at least 1/8 when compressed, are stored uncompressed without the
+ * compress flag. Deflaters and inflaters are pooled.
+ *
  */
 public class MarshalZlibTranscoder extends MarshalTranscoder {
-    static final int COMPRESS_FLAG = 1;
+    public static final int COMPRESS_FLAG = 1;
+
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+    // deflate method with a 32k window
+    private static final byte ZLIB_HEADER = 0x78;
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+    protected final int compressionMinSize;
 
     public MarshalZlibTranscoder(Ruby ruby) {
-        super(ruby, COMPRESS_FLAG);
+        this(ruby, COMPRESS_FLAG, DEFAULT_COMPRESSION_MIN_SIZE);
     }
 
     public MarshalZlibTranscoder(Ruby ruby, int flags) {
+        this(ruby, flags, DEFAULT_COMPRESSION_MIN_SIZE);
+    }
+
+    /**
+     * @param compressionMinSize marshaled values smaller than this number of bytes are not compressed
+     */
+    public MarshalZlibTranscoder(Ruby ruby, int flags, int compressionMinSize) {
         super(ruby, flags);
+        this.compressionMinSize = compressionMinSize;
     }
 
     public CachedData encode(Object o) {
         if (o instanceof IRubyObject) {
-            ZOutputStream zout = null;
+            MarshalBuffer buffer = null;
             try {
-                ByteArrayOutputStream out1 = new ByteArrayOutputStream();
-                MarshalStream marshal = new MarshalStream(ruby, out1, Integer.MAX_VALUE);
-                marshal.dumpObject((IRubyObject) o);
-
-                byte[] bytes;
-                if (getFlags() == COMPRESS_FLAG) {
-                    ByteArrayOutputStream out2 = new ByteArrayOutputStream();
-                    zout = new ZOutputStream(out2, JZlib.Z_DEFAULT_COMPRESSION);
-                    zout.write(out1.toByteArray());
-                    zout.flush();
-                    zout.end();
-                    bytes = out2.toByteArray();
-                } else {
-                    bytes = out1.toByteArray();
+                buffer = marshal((IRubyObject) o);
+                if (getFlags() != COMPRESS_FLAG) {
+                    byte[] bytes = buffer.toByteArray();
+                    return new CachedData(getFlags(), bytes, bytes.length);
                 }
-
-                return new CachedData(super.getFlags(), bytes, bytes.length);
+                if (buffer.size() >= compressionMinSize) {
+                    byte[] bytes = deflate(buffer.getBuffer(), buffer.size(), null, 0);
+                    if (bytes != null) {
+                        return new CachedData(COMPRESS_FLAG, bytes, bytes.length);
+                    }
+                }
+                byte[] bytes = buffer.toByteArray();
+                return new CachedData(0, bytes, bytes.length);
             } catch (IOException e) {
                 throw ruby.newIOErrorFromException(e);
             } finally {
-                if (zout != null) {
-                    try {
-                        zout.close();
-                    } catch (IOException e) {}
-                    zout = null;
+                if (buffer != null) {
+                    buffer.release();
                 }
             }
         } else {
@@ -67,36 +86,102 @@ public class MarshalZlibTranscoder extends MarshalTranscoder {
     }
 
     public Object decode(CachedData d) {
-        ZInputStream zin = null;
-        try {
-            byte[] bytes;
-            if (d.getFlags() == COMPRESS_FLAG) {
-                ByteArrayInputStream in = new ByteArrayInputStream(d.getData());
-                zin = new ZInputStream(in);
-
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                int nRead;
-                byte[] data = new byte[1024];
-                while ((nRead = zin.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
-                }
-                buffer.flush();
-                bytes = buffer.toByteArray();
-            } else {
-                bytes = d.getData();
+        if (d.getFlags() != COMPRESS_FLAG) {
+            return super.decode(d);
+        }
+        if (!isDeflated(d.getData())) {
+            // counters written by incr/decr on keys created by older versions
+            Long number = parseNumber(d.getData());
+            if (number != null) {
+                return number;
             }
-
-            return new UnmarshalStream(ruby, new ByteArrayInputStream(bytes), null, false, false).unmarshalObject();
+        }
+        MarshalBuffer buffer = null;
+        try {
+            buffer = inflate(d.getData(), 0, null);
+            return new UnmarshalStream(ruby, new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.size()), null, false, false).unmarshalObject();
         } catch (RaiseException e) {
             return super.decodeNumber(d, e);
         } catch (IOException e) {
             return super.decodeNumber(d, e);
         } finally {
-            if (zin != null) {
-                try {
-                    zin.close();
-                } catch (IOException e) {}
-                zin = null;
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * @return true if the data starts with the header Deflater writes
+     */
+    private static boolean isDeflated(byte[] data) {
+        return data.length >= 2 && data[0] == ZLIB_HEADER;
+    }
+
+    /**
+     * @param dictionary preset dictionary, or null
+     * @param offset number of bytes left free for a header before the compressed bytes
+     * @return the compressed bytes after offset, or null if they don't save 1/8 of the length
+     */
+    protected byte[] deflate(byte[] data, int length, byte[] dictionary, int offset) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[offset + length - length / 8];
+            int size = offset;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflates into the buffer of the current thread, the caller must
+     * release it.
+     *
+     * @param offset number of header bytes before the compressed bytes
+     * @param dictionary preset dictionary, or null
+     */
+    protected MarshalBuffer inflate(byte[] data, int offset, byte[] dictionary) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        MarshalBuffer buffer = MarshalBuffer.acquire(data.length * 4);
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            buffer.inflate(inflater, dictionary);
+            return buffer;
+        } catch (DataFormatException e) {
+            buffer.release();
+            throw new IOException(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // the dictionary doesn't match the one of the data
+            buffer.release();
+            throw new IOException(e.getMessage());
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
             }
         }
     }
@@ -0,0 +1,44 @@
+package com.openfeint.memcached.transcoder;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+import org.jruby.RubyString;
+
+/**
+ *
+ * RawTranscoder stores strings as their bytes, without marshaling, so that
+ * they are readable by non ruby clients. Other values are encoded by the
+ * transcoder it wraps, so that they are got back as they were set.
+ *
+ * It decodes like the transcoder it wraps, which returns values with the
+ * raw flag as strings.
+ *
+ */
+public class RawTranscoder implements Transcoder {
+    private final Transcoder transcoder;
+
+    public RawTranscoder(Transcoder transcoder) {
+        this.transcoder = transcoder;
+    }
+
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(Object o) {
+        if (o instanceof RubyString) {
+            byte[] bytes = ((RubyString) o).getByteList().bytes();
+            return new CachedData(MarshalTranscoder.RAW_FLAG, bytes, bytes.length);
+        } else {
+            return transcoder.encode(o);
+        }
+    }
+
+    public Object decode(CachedData d) {
+        return transcoder.decode(d);
+    }
+
+    public int getMaxSize() {
+        return transcoder.getMaxSize();
+    }
+}
@@ -0,0 +1,312 @@
+package net.spy.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StoreOperation;
+import net.spy.memcached.ops.StoreType;
+import net.spy.memcached.transcoders.Transcoder;
+import net.spy.memcached.util.StringUtils;
+
+/**
+ * MemcachedClient which exposes what spymemcached keeps to itself.
+ *
+ * It lives in net.spy.memcached to reach the package level methods of
+ * MemcachedConnection.
+ *
+ */
+public class ExtendedMemcachedClient extends MemcachedClient {
+
+  public ExtendedMemcachedClient(ConnectionFactory cf,
+      List<InetSocketAddress> addrs) throws IOException {
+    super(cf, addrs);
+  }
+
+  /**
+   * @return the locator used by the connection, not a readonly copy.
+   */
+  public NodeLocator getLocator() {
+    return mconn.getLocator();
+  }
+
+  /**
+   * Same as asyncGet, but the future is also offered to the completed queue
+   * once the operation completes, so that the caller can wait for the first
+   * of several gets without timing out the others.
+   */
+  public <T> GetFuture<T> asyncGet(String key, Transcoder<T> tc,
+      Queue<GetFuture<T>> completed) {
+    return asyncGet(key, tc, completed, null);
+  }
+
+  /**
+   * Same as asyncGet(key, tc, completed), but the get is sent to the given
+   * node instead of the primary of the key.
+   */
+  public <T> GetFuture<T> asyncGet(MemcachedNode node, String key,
+      Transcoder<T> tc, Queue<GetFuture<T>> completed) {
+    return asyncGet(key, tc, completed, node);
+  }
+
+  /**
+   * Same as asyncGetBulk, but the values are handed undecoded to the
+   * callback as soon as their node sends them instead of being collected
+   * in a map, so that a slow node only delays its own keys.
+   *
+   * @param chunkSize max number of keys of a get, or 0 for one get per node
+   * @return the get operations by node, complete is called once for each
+   *         of them
+   */
+  public Map<MemcachedNode, List<Operation>> asyncGetBulk(
+      Collection<String> keys, int chunkSize, final BulkGetCallback callback) {
+    Map<MemcachedNode, Collection<String>> chunks =
+        new HashMap<MemcachedNode, Collection<String>>();
+    NodeLocator locator = mconn.getLocator();
+    for (String key : keys) {
+      StringUtils.validateKey(key);
+      MemcachedNode node = locator.getPrimary(key);
+      if (!node.isActive()) {
+        // the first active node of the key, like MemcachedClient does
+        for (Iterator<MemcachedNode> i = locator.getSequence(key);
+            i.hasNext();) {
+          MemcachedNode n = i.next();
+          if (n.isActive()) {
+            node = n;
+            break;
+          }
+        }
+      }
+      Collection<String> chunk = chunks.get(node);
+      if (chunk == null) {
+        chunk = new ArrayList<String>();
+        chunks.put(node, chunk);
+      }
+      chunk.add(key);
+    }
+
+    Map<MemcachedNode, List<Operation>> ops =
+        new HashMap<MemcachedNode, List<Operation>>();
+    for (Map.Entry<MemcachedNode, Collection<String>> entry
+        : chunks.entrySet()) {
+      final MemcachedNode node = entry.getKey();
+      List<String> nodeKeys = new ArrayList<String>(entry.getValue());
+      int size = chunkSize > 0 ? chunkSize : nodeKeys.size();
+      List<Operation> nodeOps = new ArrayList<Operation>();
+      for (int i = 0; i < nodeKeys.size(); i += size) {
+        GetOperation.Callback cb = new GetOperation.Callback() {
+          // cancelled gets, like those of a lost connection, don't succeed
+          private boolean success;
+
+          public void receivedStatus(OperationStatus status) {
+            success = status.isSuccess();
+          }
+
+          public void gotData(String k, int flags, byte[] data) {
+            callback.gotData(k, flags, data);
+          }
+
+          public void complete() {
+            callback.complete(node, success);
+          }
+        };
+        nodeOps.add(opFact.get(
+            nodeKeys.subList(i, Math.min(i + size, nodeKeys.size())), cb));
+      }
+      ops.put(node, nodeOps);
+    }
+    mconn.checkState();
+    for (Map.Entry<MemcachedNode, List<Operation>> entry : ops.entrySet()) {
+      for (Operation op : entry.getValue()) {
+        mconn.addOperation(entry.getKey(), op);
+      }
+    }
+    return ops;
+  }
+
+  /**
+   * Same as add, replace or set, but the value is already encoded, and
+   * stored, if not null, is run on the thread of the connection once the
+   * value is stored.
+   */
+  public OperationFuture<Boolean> store(StoreType type, String key, int exp,
+      CachedData co, final Runnable stored) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final OperationFuture<Boolean> rv =
+        new OperationFuture<Boolean>(key, latch, operationTimeout);
+    Operation op = opFact.store(type, key, co.getFlags(), exp, co.getData(),
+        new StoreOperation.Callback() {
+          public void receivedStatus(OperationStatus val) {
+            rv.set(val.isSuccess(), val);
+            if (val.isSuccess() && stored != null) {
+              stored.run();
+            }
+          }
+
+          public void gotData(String key, long cas) {
+            rv.setCas(cas);
+          }
+
+          public void complete() {
+            latch.countDown();
+          }
+        });
+    rv.setOperation(op);
+    mconn.enqueueOperation(key, op);
+    return rv;
+  }
+
+  /**
+   * Sends a version to the given node to probe it, replied is run on the
+   * thread of the connection if the node replies.
+   */
+  public void version(MemcachedNode node, final Runnable replied) {
+    Operation op = opFact.version(new OperationCallback() {
+      public void receivedStatus(OperationStatus s) {
+        if (s.isSuccess()) {
+          replied.run();
+        }
+      }
+
+      public void complete() {
+      }
+    });
+    mconn.addOperation(node, op);
+  }
+
+  /**
+   * Sets an already encoded value on the given node.
+   */
+  public OperationFuture<Boolean> set(MemcachedNode node, String key, int exp,
+      CachedData co) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final OperationFuture<Boolean> rv =
+        new OperationFuture<Boolean>(key, latch, operationTimeout);
+    Operation op = opFact.store(StoreType.set, key, co.getFlags(), exp,
+        co.getData(), new StoreOperation.Callback() {
+          public void receivedStatus(OperationStatus val) {
+            rv.set(val.isSuccess(), val);
+          }
+
+          public void gotData(String key, long cas) {
+            rv.setCas(cas);
+          }
+
+          public void complete() {
+            latch.countDown();
+          }
+        });
+    rv.setOperation(op);
+    mconn.addOperation(node, op);
+    return rv;
+  }
+
+  /**
+   * Same as delete, but deleted, if not null, is run on the thread of the
+   * connection once the delete completed, whether the key was found or not.
+   */
+  public OperationFuture<Boolean> delete(String key, final Runnable deleted) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final OperationFuture<Boolean> rv =
+        new OperationFuture<Boolean>(key, latch, operationTimeout);
+    Operation op = opFact.delete(key, new OperationCallback() {
+      public void receivedStatus(OperationStatus s) {
+        rv.set(s.isSuccess(), s);
+        if (deleted != null) {
+          deleted.run();
+        }
+      }
+
+      public void complete() {
+        latch.countDown();
+      }
+    });
+    rv.setOperation(op);
+    mconn.enqueueOperation(key, op);
+    return rv;
+  }
+
+  /**
+   * Deletes a key on the given node.
+   */
+  public OperationFuture<Boolean> delete(MemcachedNode node, String key) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final OperationFuture<Boolean> rv =
+        new OperationFuture<Boolean>(key, latch, operationTimeout);
+    Operation op = opFact.delete(key, new OperationCallback() {
+      public void receivedStatus(OperationStatus s) {
+        rv.set(s.isSuccess(), s);
+      }
+
+      public void complete() {
+        latch.countDown();
+      }
+    });
+    rv.setOperation(op);
+    mconn.addOperation(node, op);
+    return rv;
+  }
+
+  /**
+   * The get is enqueued like MemcachedClient does if node is null.
+   */
+  private <T> GetFuture<T> asyncGet(final String key, final Transcoder<T> tc,
+      final Queue<GetFuture<T>> completed, MemcachedNode node) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final GetFuture<T> rv = new GetFuture<T>(latch, operationTimeout, key);
+    Operation op = opFact.get(key, new GetOperation.Callback() {
+      private Future<T> val = null;
+
+      public void receivedStatus(OperationStatus status) {
+        rv.set(val, status);
+      }
+
+      public void gotData(String k, int flags, byte[] data) {
+        assert key.equals(k) : "Wrong key returned";
+        val =
+            tcService.decode(tc, new CachedData(flags, data, tc.getMaxSize()));
+      }
+
+      public void complete() {
+        latch.countDown();
+        completed.offer(rv);
+      }
+    });
+    rv.setOperation(op);
+    if (node == null) {
+      mconn.enqueueOperation(key, op);
+    } else {
+      mconn.addOperation(node, op);
+    }
+    return rv;
+  }
+
+  /**
+   * Receives the values of asyncGetBulk(keys, callback), on the thread of
+   * the connection.
+   */
+  public interface BulkGetCallback {
+    void gotData(String key, int flags, byte[] data);
+
+    /**
+     * Called once a get of the node completed, failed or was cancelled.
+     *
+     * @param success false if the get failed or was cancelled
+     */
+    void complete(MemcachedNode node, boolean success);
+  }
+}
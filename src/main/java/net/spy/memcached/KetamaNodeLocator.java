@@ -1,12 +1,22 @@
 package net.spy.memcached;
 
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.spy.memcached.compat.SpyObject;
 import net.spy.memcached.util.DefaultKetamaNodeLocatorConfiguration;
@@ -17,10 +27,28 @@ import net.spy.memcached.util.KetamaNodeLocatorConfiguration;
  *
  * hashAlg should only be used to get server by key.
  *
+ * The continuum is kept in a sorted long[] with a parallel node array, so
+ * that looking up a key is a binary search without boxing, it is replaced
+ * as a whole when the locator is updated.
+ *
  */
 public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
 
-  private volatile TreeMap<Long, MemcachedNode> ketamaNodes;
+  // Continuums are computed in parallel from this number of nodes.
+  private static final int PARALLEL_THRESHOLD = 256;
+  private static final long NODE_INDEX_MASK = 0x7FFFFFFFL;
+  private static final int CONTINUUM_CACHE_SIZE = 16;
+  private static final Map<String, long[]> CONTINUUM_CACHE =
+      new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+          return size() > CONTINUUM_CACHE_SIZE;
+        }
+      };
+  private static ExecutorService executor;
+
+  private volatile Continuum continuum;
+  private volatile List<MemcachedNode> continuumNodes;
   private final Collection<MemcachedNode> allNodes;
 
   private final HashAlgorithm hashAlg;
@@ -58,11 +86,11 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
     setKetamaNodes(nodes);
   }
 
-  private KetamaNodeLocator(TreeMap<Long, MemcachedNode> smn,
+  private KetamaNodeLocator(Continuum c,
       Collection<MemcachedNode> an, HashAlgorithm alg,
       KetamaNodeLocatorConfiguration conf) {
     super();
-    ketamaNodes = smn;
+    continuum = c;
     allNodes = an;
     hashAlg = alg;
     config = conf;
@@ -79,48 +107,58 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
   }
 
   long getMaxKey() {
-    return getKetamaNodes().lastKey();
+    long[] points = continuum.points;
+    return points[points.length - 1];
   }
 
   MemcachedNode getNodeForKey(long hash) {
-    final MemcachedNode rv;
-    if (!ketamaNodes.containsKey(hash)) {
-      // Java 1.6 adds a ceilingKey method, but I'm still stuck in 1.5
-      // in a lot of places, so I'm doing this myself.
-      SortedMap<Long, MemcachedNode> tailMap = getKetamaNodes().tailMap(hash);
-      if (tailMap.isEmpty()) {
-        hash = getKetamaNodes().firstKey();
-      } else {
-        hash = tailMap.firstKey();
-      }
-    }
-    rv = getKetamaNodes().get(hash);
-    return rv;
+    return continuum.getNodeForKey(hash);
   }
 
   public Iterator<MemcachedNode> getSequence(String k) {
     // Seven searches gives us a 1 in 2^7 chance of hitting the
     // same dead node all of the time.
-    return new KetamaIterator(k, 7, getKetamaNodes(), hashAlg);
+    return new ContinuumIterator(k, 7, continuum, hashAlg);
+  }
+
+  /**
+   * Walks the continuum clockwise from the primary of the key.
+   *
+   * @param k the key
+   * @param count the max number of replicas
+   * @return the next distinct nodes after the primary, fewer than count if
+   *         the continuum doesn't have that many nodes
+   */
+  public List<MemcachedNode> getReplicas(String k, int count) {
+    return continuum.getSuccessors(hashAlg.hash(k), count);
   }
 
   public NodeLocator getReadonlyCopy() {
-    TreeMap<Long, MemcachedNode> smn =
-        new TreeMap<Long, MemcachedNode>(getKetamaNodes());
-    Collection<MemcachedNode> an =
-        new ArrayList<MemcachedNode>(allNodes.size());
+    Continuum c = continuum;
+    Map<MemcachedNode, MemcachedNode> readonlyNodes =
+        new IdentityHashMap<MemcachedNode, MemcachedNode>();
+    MemcachedNode[] nodes = new MemcachedNode[c.nodes.length];
 
-    // Rewrite the values a copy of the map.
-    for (Map.Entry<Long, MemcachedNode> me : smn.entrySet()) {
-      me.setValue(new MemcachedNodeROImpl(me.getValue()));
+    // Rewrite the nodes of a copy of the continuum.
+    for (int i = 0; i < nodes.length; i++) {
+      MemcachedNode n = readonlyNodes.get(c.nodes[i]);
+      if (n == null) {
+        n = new MemcachedNodeROImpl(c.nodes[i]);
+        readonlyNodes.put(c.nodes[i], n);
+      }
+      nodes[i] = n;
     }
 
+    Collection<MemcachedNode> an =
+        new ArrayList<MemcachedNode>(allNodes.size());
+
     // Copy the allNodes collection.
     for (MemcachedNode n : allNodes) {
       an.add(new MemcachedNodeROImpl(n));
     }
 
-    return new KetamaNodeLocator(smn, an, hashAlg, config);
+    return new KetamaNodeLocator(new Continuum(c.points, nodes), an, hashAlg,
+        config);
   }
 
   @Override
@@ -129,37 +167,289 @@ public final class KetamaNodeLocator extends SpyObject implements NodeLocator {
   }
 
   /**
-   * @return the ketamaNodes
+   * Weights the nodes like libmemcached's weighted ketama, a node gets
+   * points in proportion to its weight, nodes without weight weigh 1.
+   *
+   * @param weights the weight of each node by socket address
+   */
+  public void setNodeWeights(Map<SocketAddress, Integer> weights) {
+    if (!(config instanceof DefaultKetamaNodeLocatorConfiguration)) {
+      throw new UnsupportedOperationException(
+          "weights need DefaultKetamaNodeLocatorConfiguration");
+    }
+    ((DefaultKetamaNodeLocatorConfiguration) config).setNodeWeights(weights);
+    setKetamaNodes(continuumNodes);
+  }
+
+  /**
+   * @return a copy of the continuum as a map
    */
   protected TreeMap<Long, MemcachedNode> getKetamaNodes() {
+    Continuum c = continuum;
+    TreeMap<Long, MemcachedNode> ketamaNodes =
+        new TreeMap<Long, MemcachedNode>();
+    for (int i = 0; i < c.points.length; i++) {
+      ketamaNodes.put(c.points[i], c.nodes[i]);
+    }
     return ketamaNodes;
   }
 
   /**
    * Setup the KetamaNodeLocator with the list of nodes it should use.
    *
+   * Points are computed once per server list, the continuum of the same
+   * server list is reused by the following clients.
+   *
    * @param nodes a List of MemcachedNodes for this KetamaNodeLocator to use in
    *          its continuum
    */
   protected void setKetamaNodes(List<MemcachedNode> nodes) {
-    TreeMap<Long, MemcachedNode> newNodeMap =
-        new TreeMap<Long, MemcachedNode>();
-    int numReps = config.getNodeRepetitions();
+    MemcachedNode[] nodeArray = nodes.toArray(new MemcachedNode[nodes.size()]);
+    int[] numReps = getNodeRepetitions(nodeArray);
+    String signature = getSignature(nodeArray, numReps);
+    long[] packed;
+    synchronized (CONTINUUM_CACHE) {
+      packed = CONTINUUM_CACHE.get(signature);
+    }
+    if (packed == null) {
+      packed = computeContinuum(nodeArray, numReps);
+      synchronized (CONTINUUM_CACHE) {
+        CONTINUUM_CACHE.put(signature, packed);
+      }
+    }
+    long[] points = new long[packed.length];
+    MemcachedNode[] pointNodes = new MemcachedNode[packed.length];
+    for (int i = 0; i < packed.length; i++) {
+      points[i] = packed[i] >>> 31;
+      pointNodes[i] = nodeArray[(int) (packed[i] & NODE_INDEX_MASK)];
+    }
+    if (getLogger().isDebugEnabled()) {
+      getLogger().debug("Continuum of %d nodes has %d points", nodeArray.length,
+          points.length);
+    }
+    continuumNodes = nodes;
+    continuum = new Continuum(points, pointNodes);
+  }
+
+  /**
+   * Unweighted nodes all get the configured repetitions, weighted nodes
+   * share them like libmemcached does:
+   *   floor(weight / total weight * repetitions / 4 * number of nodes) * 4
+   */
+  private int[] getNodeRepetitions(MemcachedNode[] nodes) {
+    int[] numReps = new int[nodes.length];
+    int reps = config.getNodeRepetitions();
+    if (!(config instanceof DefaultKetamaNodeLocatorConfiguration)
+        || !((DefaultKetamaNodeLocatorConfiguration) config).isWeighted()) {
+      Arrays.fill(numReps, reps);
+      return numReps;
+    }
+    DefaultKetamaNodeLocatorConfiguration weightedConfig =
+        (DefaultKetamaNodeLocatorConfiguration) config;
+    int totalWeight = 0;
     for (MemcachedNode node : nodes) {
-      for (int i = 0; i < numReps / 4; i++) {
+      totalWeight += weightedConfig.getNodeWeight(node);
+    }
+    for (int i = 0; i < nodes.length; i++) {
+      float pct = (float) weightedConfig.getNodeWeight(nodes[i]) / (float) totalWeight;
+      numReps[i] = (int) Math.floor((float) (pct * reps / 4 * (float) nodes.length
+          + 0.0000000001)) * 4;
+    }
+    return numReps;
+  }
+
+  /**
+   * This also warms up the socket address cache of the configuration, so
+   * that it is only read while computing points in parallel.
+   */
+  private String getSignature(MemcachedNode[] nodes, int[] numReps) {
+    StringBuilder signature = new StringBuilder();
+    for (int i = 0; i < nodes.length; i++) {
+      signature.append(config.getKeyForNode(nodes[i], 0)).append('*')
+          .append(numReps[i]).append(',');
+    }
+    return signature.toString();
+  }
+
+  /**
+   * @return sorted points, each packed with the index of its node in the
+   *         low 31 bits, a point shared by several nodes belongs to the last
+   *         one.
+   */
+  private long[] computeContinuum(final MemcachedNode[] nodes,
+      final int[] numReps) {
+    // offsets[n] is the index of the first point of the nth node.
+    final int[] offsets = new int[nodes.length + 1];
+    for (int n = 0; n < nodes.length; n++) {
+      offsets[n + 1] = offsets[n] + numReps[n] / 4 * 4;
+    }
+    final long[] packed = new long[offsets[nodes.length]];
+    if (nodes.length < PARALLEL_THRESHOLD) {
+      computePoints(packed, offsets, nodes, 0, nodes.length);
+    } else {
+      int chunks = Runtime.getRuntime().availableProcessors();
+      int chunkSize = (nodes.length + chunks - 1) / chunks;
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int from = 0; from < nodes.length; from += chunkSize) {
+        final int start = from;
+        final int end = Math.min(from + chunkSize, nodes.length);
+        futures.add(getExecutor().submit(new Runnable() {
+          public void run() {
+            computePoints(packed, offsets, nodes, start, end);
+          }
+        }));
+      }
+      try {
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted computing continuum", e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException("Exception computing continuum", e);
+      }
+    }
+    Arrays.sort(packed);
+
+    int size = 0;
+    for (int i = 0; i < packed.length; i++) {
+      if (size > 0 && (packed[size - 1] >>> 31) == (packed[i] >>> 31)) {
+        size--;
+      }
+      packed[size++] = packed[i];
+    }
+    assert size == packed.length;
+    return size == packed.length ? packed : Arrays.copyOf(packed, size);
+  }
+
+  private void computePoints(long[] packed, int[] offsets,
+      MemcachedNode[] nodes, int from, int to) {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("MD5 not supported", e);
+    }
+    for (int n = from; n < to; n++) {
+      int p = offsets[n];
+      for (int i = 0; i < (offsets[n + 1] - offsets[n]) / 4; i++) {
         byte[] digest =
-            DefaultHashAlgorithm.computeMd5(config.getKeyForNode(node, i));
+            md5.digest(KeyUtil.getKeyBytes(config.getKeyForNode(nodes[n], i)));
         for (int h = 0; h < 4; h++) {
-          Long k = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+          long k = ((long) (digest[3 + h * 4] & 0xFF) << 24)
                   | ((long) (digest[2 + h * 4] & 0xFF) << 16)
                   | ((long) (digest[1 + h * 4] & 0xFF) << 8)
                   | (digest[h * 4] & 0xFF);
-          newNodeMap.put(k, node);
-          getLogger().debug("Adding node %s in position %d", node, k);
+          packed[p++] = (k << 31) | n;
+        }
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "KetamaNodeLocator continuum");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    return executor;
+  }
+
+  /**
+   * The points of the continuum in ascending order, and the node owning
+   * each point.
+   */
+  static final class Continuum {
+    private final long[] points;
+    private final MemcachedNode[] nodes;
+
+    Continuum(long[] points, MemcachedNode[] nodes) {
+      this.points = points;
+      this.nodes = nodes;
+    }
+
+    /**
+     * @return the node owning the first point at or after the hash,
+     *         wrapping around to the first point.
+     */
+    MemcachedNode getNodeForKey(long hash) {
+      int i = Arrays.binarySearch(points, hash);
+      if (i < 0) {
+        i = -i - 1;
+        if (i == points.length) {
+          i = 0;
+        }
+      }
+      return nodes[i];
+    }
+
+    /**
+     * @return the distinct nodes following the node of the hash.
+     */
+    List<MemcachedNode> getSuccessors(long hash, int count) {
+      List<MemcachedNode> successors = new ArrayList<MemcachedNode>(count);
+      int i = Arrays.binarySearch(points, hash);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      MemcachedNode primary = nodes[i % nodes.length];
+      for (int n = 1; n < nodes.length && successors.size() < count; n++) {
+        MemcachedNode node = nodes[(i + n) % nodes.length];
+        if (node != primary && !successors.contains(node)) {
+          successors.add(node);
         }
       }
+      return successors;
+    }
+  }
+
+  /**
+   * Same as spymemcached's KetamaIterator, but walks a Continuum.
+   */
+  static final class ContinuumIterator implements Iterator<MemcachedNode> {
+    private final String key;
+    private long hashVal;
+    private int remainingTries;
+    private int numTries = 0;
+    private final HashAlgorithm hashAlg;
+    private final Continuum continuum;
+
+    ContinuumIterator(final String k, final int t, Continuum c,
+        final HashAlgorithm alg) {
+      continuum = c;
+      hashAlg = alg;
+      hashVal = alg.hash(k);
+      remainingTries = t;
+      key = k;
+    }
+
+    private void nextHash() {
+      long tmpKey = hashAlg.hash((numTries++) + key);
+      // This echos the implementation of Long.hashCode()
+      hashVal += (int) (tmpKey ^ (tmpKey >>> 32));
+      hashVal &= 0xffffffffL; /* truncate to 32-bits */
+      remainingTries--;
+    }
+
+    public boolean hasNext() {
+      return remainingTries > 0;
+    }
+
+    public MemcachedNode next() {
+      try {
+        return continuum.getNodeForKey(hashVal);
+      } finally {
+        nextHash();
+      }
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("remove not supported");
     }
-    assert newNodeMap.size() == numReps * nodes.size();
-    ketamaNodes = newNodeMap;
   }
 }
@@ -1,6 +1,7 @@
 package net.spy.memcached.util;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,6 +25,10 @@ public class DefaultKetamaNodeLocatorConfiguration implements
   protected Map<MemcachedNode, String> socketAddresses =
       new HashMap<MemcachedNode, String>();
 
+  // Weights of the nodes by socket address, empty if not weighted
+  protected Map<SocketAddress, Integer> weights =
+      new HashMap<SocketAddress, Integer>();
+
   /**
    * Returns the socket address of a given MemcachedNode.
    *
@@ -62,6 +67,33 @@ public class DefaultKetamaNodeLocatorConfiguration implements
     return numReps;
   }
 
+  /**
+   * Sets the weights of the nodes, like host:port:weight in libmemcached.
+   *
+   * @param weights the weight of each node by socket address
+   */
+  public void setNodeWeights(Map<SocketAddress, Integer> weights) {
+    this.weights = new HashMap<SocketAddress, Integer>(weights);
+  }
+
+  /**
+   * @return true if any node has a weight
+   */
+  public boolean isWeighted() {
+    return !weights.isEmpty();
+  }
+
+  /**
+   * Returns the weight of a given MemcachedNode, 1 if it has no weight.
+   *
+   * @param node The node which we're interested in
+   * @return int the weight of that node.
+   */
+  public int getNodeWeight(MemcachedNode node) {
+    Integer weight = weights.get(node.getSocketAddress());
+    return weight == null ? 1 : weight;
+  }
+
   /**
    * Returns a uniquely identifying key, suitable for hashing by the
    * KetamaNodeLocator algorithm.